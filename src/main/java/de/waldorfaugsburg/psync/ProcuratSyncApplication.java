@@ -3,19 +3,23 @@ package de.waldorfaugsburg.psync;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonReader;
+import de.waldorfaugsburg.psync.client.HttpClientRegistry;
 import de.waldorfaugsburg.psync.client.activedirectory.ADClient;
 import de.waldorfaugsburg.psync.client.ews.EWSClient;
+import de.waldorfaugsburg.psync.client.ews.EWSSession;
 import de.waldorfaugsburg.psync.client.procurat.ProcuratClient;
 import de.waldorfaugsburg.psync.client.starface.StarfaceClient;
 import de.waldorfaugsburg.psync.config.ApplicationConfiguration;
 import de.waldorfaugsburg.psync.config.JsonAdapter;
 import de.waldorfaugsburg.psync.mail.ApplicationMailer;
+import de.waldorfaugsburg.psync.state.SyncStateStore;
 import de.waldorfaugsburg.psync.task.AbstractSyncTaskConfiguration;
 import de.waldorfaugsburg.psync.task.SyncTaskScheduler;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.FileReader;
+import java.nio.file.Path;
 
 @Getter
 @Slf4j
@@ -27,6 +31,9 @@ public class ProcuratSyncApplication {
 
     private ApplicationConfiguration configuration;
     private ApplicationMailer mailer;
+    private HttpClientRegistry httpClientRegistry;
+    private EWSSession ewsSession;
+    private SyncStateStore stateStore;
     private SyncTaskScheduler scheduler;
 
     public void enable() throws Exception {
@@ -35,6 +42,9 @@ public class ProcuratSyncApplication {
         }
 
         mailer = new ApplicationMailer(this);
+        httpClientRegistry = new HttpClientRegistry(configuration.getHttp());
+        ewsSession = new EWSSession(configuration.getClients().getEws());
+        stateStore = new SyncStateStore(Path.of(configuration.getState().getDirectory()));
         scheduler = new SyncTaskScheduler(this);
     }
 
@@ -42,6 +52,18 @@ public class ProcuratSyncApplication {
         if (scheduler != null) {
             scheduler.stopTasks();
         }
+
+        if (httpClientRegistry != null) {
+            httpClientRegistry.shutdown();
+        }
+
+        if (ewsSession != null) {
+            ewsSession.close();
+        }
+
+        if (stateStore != null) {
+            stateStore.close();
+        }
     }
 
     public static void main(final String[] args) {
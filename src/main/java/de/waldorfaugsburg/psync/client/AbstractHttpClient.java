@@ -1,46 +1,281 @@
 package de.waldorfaugsburg.psync.client;
 
 import com.google.gson.Gson;
+import lombok.extern.slf4j.Slf4j;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Invocation;
 import retrofit2.Response;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.http.DELETE;
+import retrofit2.http.GET;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
+import retrofit2.http.Streaming;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 public abstract class AbstractHttpClient extends AbstractClient {
 
     public static final Gson GSON = new Gson();
+
+    private final HttpClientRegistry registry;
+    private final String url;
+    private final Map<String, CompletableFuture<Object>> inFlightCalls = new ConcurrentHashMap<>();
+    private final AtomicLong deduplicatedCalls = new AtomicLong();
+    private final RetryPolicy retryPolicy;
+    private final HttpCallMetrics callMetrics = new HttpCallMetrics();
+    private Gson gson;
     private Retrofit retrofit;
 
+    protected AbstractHttpClient(final HttpClientRegistry registry, final String url) {
+        this.registry = registry;
+        this.url = url;
+        this.retryPolicy = new RetryPolicy(registry.getConfiguration().getRetry());
+    }
+
     @Override
     protected <T extends Exception> void setup() throws T {
-        final OkHttpClient client = createClient(new OkHttpClient.Builder());
+        // Derived clients share the connection pool and dispatcher of the registry
+        final OkHttpClient client = createClient(registry.getClient(url).newBuilder().eventListenerFactory(callMetrics));
         final Retrofit.Builder builder = new Retrofit.Builder();
         builder.client(client);
-        builder.addConverterFactory(GsonConverterFactory.create(GSON));
+        gson = createGson();
+        builder.addConverterFactory(GsonConverterFactory.create(gson));
         retrofit = createRetrofit(builder);
     }
 
+    protected Gson createGson() {
+        return GSON;
+    }
+
     protected abstract OkHttpClient createClient(final OkHttpClient.Builder clientBuilder);
 
     protected abstract Retrofit createRetrofit(final Retrofit.Builder retrofitBuilder);
 
+    @SuppressWarnings("unchecked")
     public <T> T execute(final Call<T> call) throws HttpClientException {
+        final Request request = call.request();
+        if (!request.method().equals("GET") || isStreaming(request)) {
+            return executeCall(call).body();
+        }
+
+        // Share the result of an identical in-flight request instead of issuing it again
+        final String key = request.url().toString();
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        final CompletableFuture<Object> inFlightCall = inFlightCalls.putIfAbsent(key, future);
+        if (inFlightCall != null) {
+            deduplicatedCalls.incrementAndGet();
+            return (T) await(inFlightCall);
+        }
+
         try {
-            final Response<T> response = call.execute();
-            if (!response.isSuccessful()) {
+            final T result = executeCall(call).body();
+            future.complete(result);
+            return result;
+        } catch (final HttpClientException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightCalls.remove(key, future);
+        }
+    }
+
+    /**
+     * Like {@link #execute(Call)}, but returns the whole response (e.g. to read the location of a created resource)
+     * and never shares it with identical requests
+     **/
+    public <T> Response<T> executeForResponse(final Call<T> call) throws HttpClientException {
+        return executeCall(call);
+    }
+
+    private <T> Response<T> executeCall(final Call<T> call) throws HttpClientException {
+        Call<T> attemptCall = call;
+        for (int attempt = 1; ; attempt++) {
+            final boolean retryable = retryPolicy.isRetryable(call.request(), attempt);
+
+            final Response<T> response;
+            try {
+                response = attemptCall.execute();
+            } catch (final IOException e) {
+                final long delayMillis = retryable ? retryPolicy.acquireRetry(attempt, null) : -1;
+                if (delayMillis < 0) {
+                    throw new HttpClientException(e);
+                }
+
+                log.warn("Retrying '{}' in {}ms (attempt {}): {}", getEndpoint(call.request()), delayMillis, attempt, e.getMessage());
+                sleep(delayMillis);
+                attemptCall = attemptCall.clone();
+                continue;
+            }
+
+            if (response.isSuccessful()) {
+                return response;
+            }
+
+            if (retryable && retryPolicy.isRetryableStatus(response.code())) {
+                final long delayMillis = retryPolicy.acquireRetry(attempt, response.headers().get("Retry-After"));
+                if (delayMillis >= 0) {
+                    final ResponseBody errorBody = response.errorBody();
+                    if (errorBody != null) {
+                        errorBody.close();
+                    }
+
+                    log.warn("Retrying '{}' in {}ms (attempt {}): HTTP {}", getEndpoint(call.request()), delayMillis, attempt, response.code());
+                    sleep(delayMillis);
+                    attemptCall = attemptCall.clone();
+                    continue;
+                }
+            }
+
+            try {
                 throw new HttpClientException(response.code(), parseError(response));
+            } catch (final IOException e) {
+                throw new HttpClientException(e);
             }
+        }
+    }
 
-            return response.body();
-        } catch (final IOException e) {
+    private static void sleep(final long millis) throws HttpClientException {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new HttpClientException(e);
         }
     }
 
+    /**
+     * Asynchronous counterpart of {@link #execute(Call)} using OkHttp's dispatcher, which also limits
+     * the number of concurrent requests per host. Failures complete the future with an {@link HttpClientException}.
+     **/
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(final Call<T> call) {
+        final Request request = call.request();
+        if (!request.method().equals("GET") || isStreaming(request)) {
+            return enqueue(call, 1);
+        }
+
+        // Share the result of an identical in-flight request instead of issuing it again
+        final String key = request.url().toString();
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        final CompletableFuture<Object> inFlightCall = inFlightCalls.putIfAbsent(key, future);
+        if (inFlightCall != null) {
+            deduplicatedCalls.incrementAndGet();
+            return inFlightCall.thenApply(result -> (T) result);
+        }
+
+        enqueue(call, 1).whenComplete((result, throwable) -> {
+            inFlightCalls.remove(key, future);
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(result);
+            }
+        });
+        return future.thenApply(result -> (T) result);
+    }
+
+    private <T> CompletableFuture<T> enqueue(final Call<T> call, final int attempt) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final boolean retryable = retryPolicy.isRetryable(call.request(), attempt);
+        call.enqueue(new Callback<>() {
+            @Override
+            public void onResponse(final Call<T> call, final Response<T> response) {
+                if (response.isSuccessful()) {
+                    future.complete(response.body());
+                    return;
+                }
+
+                if (retryable && retryPolicy.isRetryableStatus(response.code())) {
+                    final long delayMillis = retryPolicy.acquireRetry(attempt, response.headers().get("Retry-After"));
+                    if (delayMillis >= 0) {
+                        final ResponseBody errorBody = response.errorBody();
+                        if (errorBody != null) {
+                            errorBody.close();
+                        }
+
+                        log.warn("Retrying '{}' in {}ms (attempt {}): HTTP {}", getEndpoint(call.request()), delayMillis, attempt, response.code());
+                        retryLater(call, attempt, delayMillis, future);
+                        return;
+                    }
+                }
+
+                try {
+                    future.completeExceptionally(new HttpClientException(response.code(), parseError(response)));
+                } catch (final IOException e) {
+                    future.completeExceptionally(new HttpClientException(e));
+                } catch (final RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(final Call<T> call, final Throwable throwable) {
+                if (!(throwable instanceof IOException)) {
+                    future.completeExceptionally(throwable);
+                    return;
+                }
+
+                final long delayMillis = retryable ? retryPolicy.acquireRetry(attempt, null) : -1;
+                if (delayMillis < 0) {
+                    future.completeExceptionally(new HttpClientException(throwable));
+                    return;
+                }
+
+                log.warn("Retrying '{}' in {}ms (attempt {}): {}", getEndpoint(call.request()), delayMillis, attempt, throwable.getMessage());
+                retryLater(call, attempt, delayMillis, future);
+            }
+        });
+        return future;
+    }
+
+    private <T> void retryLater(final Call<T> call, final int attempt, final long delayMillis, final CompletableFuture<T> future) {
+        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() ->
+                enqueue(call.clone(), attempt + 1).whenComplete((result, throwable) -> {
+                    if (throwable != null) {
+                        future.completeExceptionally(throwable);
+                    } else {
+                        future.complete(result);
+                    }
+                }));
+    }
+
+    /**
+     * Waits for a future returned by {@link #executeAsync(Call)} and rethrows its failure
+     **/
+    public static <T> T await(final CompletableFuture<T> future) throws HttpClientException {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof final HttpClientException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof final RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isStreaming(final Request request) {
+        // Streamed bodies can only be consumed once
+        final Invocation invocation = request.tag(Invocation.class);
+        return invocation != null && invocation.method().isAnnotationPresent(Streaming.class);
+    }
+
     private ClientError parseError(final Response<?> response) throws IOException {
         final String contentType = response.headers().get("Content-Type");
         if (contentType == null || !contentType.equals("application/json")) {
@@ -57,11 +292,36 @@ public abstract class AbstractHttpClient extends AbstractClient {
         return GSON.fromJson(rawBody, ClientError.class);
     }
 
+    /**
+     * Resolves the Retrofit endpoint template (e.g. "GET persons/{personId}") a request was created from
+     **/
+    public static String getEndpoint(final Request request) {
+        final Invocation invocation = request.tag(Invocation.class);
+        if (invocation != null) {
+            final Method method = invocation.method();
+            if (method.isAnnotationPresent(GET.class)) return "GET " + method.getAnnotation(GET.class).value();
+            if (method.isAnnotationPresent(POST.class)) return "POST " + method.getAnnotation(POST.class).value();
+            if (method.isAnnotationPresent(PUT.class)) return "PUT " + method.getAnnotation(PUT.class).value();
+            if (method.isAnnotationPresent(DELETE.class)) return "DELETE " + method.getAnnotation(DELETE.class).value();
+        }
+        return request.method() + " " + request.url().encodedPath();
+    }
+
+    protected Gson getGson() {
+        return gson;
+    }
+
+    protected String getUrl() {
+        return url;
+    }
+
     protected Retrofit getRetrofit() {
         return retrofit;
     }
 
     @Override
     public void close() throws Exception {
+        log.info("Deduplicated {} in-flight calls", deduplicatedCalls.get());
+        callMetrics.logStatistics();
     }
 }
@@ -0,0 +1,52 @@
+package de.waldorfaugsburg.psync.client;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application interceptor counting how responses of an OkHttp {@link okhttp3.Cache} were served, per endpoint
+ **/
+@Slf4j
+public final class HttpCacheStatistics implements Interceptor {
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        final Response response = chain.proceed(chain.request());
+        final Counters endpointCounters = counters.computeIfAbsent(AbstractHttpClient.getEndpoint(chain.request()), e -> new Counters());
+
+        if (response.networkResponse() == null) {
+            // Served from disk without touching the network
+            endpointCounters.hits.incrementAndGet();
+        } else if (response.cacheResponse() != null) {
+            // Revalidated using ETag/Last-Modified (304)
+            endpointCounters.revalidations.incrementAndGet();
+        } else {
+            endpointCounters.misses.incrementAndGet();
+        }
+        return response;
+    }
+
+    public void logStatistics() {
+        counters.forEach((endpoint, endpointCounters) -> {
+            final long hits = endpointCounters.hits.get() + endpointCounters.revalidations.get();
+            final long total = hits + endpointCounters.misses.get();
+            log.info("HTTP cache '{}': {} hits, {} revalidated, {} misses (hit rate: {}%)", endpoint,
+                    endpointCounters.hits.get(), endpointCounters.revalidations.get(), endpointCounters.misses.get(),
+                    total == 0 ? 0 : Math.round(hits * 100.0 / total));
+        });
+    }
+
+    private static final class Counters {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong revalidations = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+    }
+}
@@ -0,0 +1,176 @@
+package de.waldorfaugsburg.psync.client;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records where the time of each call went (DNS, connect, TLS, time to first byte, body transfer) and how many
+ * bytes were transferred, per Retrofit endpoint template. Calls served from a pooled connection or the HTTP cache
+ * simply have no DNS/connect/TLS phase.
+ **/
+@Slf4j
+public final class HttpCallMetrics implements EventListener.Factory {
+
+    private final Map<String, EndpointMetrics> metrics = new ConcurrentHashMap<>();
+
+    @Override
+    public EventListener create(final Call call) {
+        return new CallListener(metrics.computeIfAbsent(AbstractHttpClient.getEndpoint(call.request()), e -> new EndpointMetrics()));
+    }
+
+    public void logStatistics() {
+        metrics.forEach((endpoint, endpointMetrics) -> {
+            log.info("HTTP '{}': {} calls ({} failed), {} bytes sent, {} bytes received", endpoint,
+                    endpointMetrics.histograms.get(Phase.TOTAL).getCount(), endpointMetrics.failedCalls.get(),
+                    endpointMetrics.sentBytes.get(), endpointMetrics.receivedBytes.get());
+            endpointMetrics.histograms.forEach((phase, histogram) -> {
+                if (histogram.getCount() == 0) return;
+                log.info("HTTP '{}' {}: p50 {}ms, p95 {}ms, p99 {}ms, max {}ms ({} samples)", endpoint, phase.getName(),
+                        toMillis(histogram.getPercentile(50)), toMillis(histogram.getPercentile(95)),
+                        toMillis(histogram.getPercentile(99)), toMillis(histogram.getMax()), histogram.getCount());
+            });
+        });
+    }
+
+    private static String toMillis(final long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    private enum Phase {
+        DNS("dns"),
+        CONNECT("connect"),
+        TLS("tls"),
+        TTFB("ttfb"),
+        BODY("body"),
+        TOTAL("total");
+
+        private final String name;
+
+        Phase(final String name) {
+            this.name = name;
+        }
+
+        private String getName() {
+            return name;
+        }
+    }
+
+    private static final class EndpointMetrics {
+        private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+        private final AtomicLong failedCalls = new AtomicLong();
+        private final AtomicLong sentBytes = new AtomicLong();
+        private final AtomicLong receivedBytes = new AtomicLong();
+
+        private EndpointMetrics() {
+            for (final Phase phase : Phase.values()) {
+                histograms.put(phase, new LatencyHistogram());
+            }
+        }
+
+        private void record(final Phase phase, final long startNanos) {
+            histograms.get(phase).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+    }
+
+    /**
+     * Events of a single call are delivered sequentially, so plain fields suffice
+     **/
+    private static final class CallListener extends EventListener {
+
+        private final EndpointMetrics metrics;
+        private long callStartNanos;
+        private long dnsStartNanos;
+        private long connectStartNanos;
+        private long secureConnectStartNanos;
+        private long requestStartNanos;
+        private long bodyStartNanos;
+
+        private CallListener(final EndpointMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void callStart(final Call call) {
+            callStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(final Call call, final String domainName) {
+            dnsStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(final Call call, final String domainName, final List<InetAddress> inetAddressList) {
+            metrics.record(Phase.DNS, dnsStartNanos);
+        }
+
+        @Override
+        public void connectStart(final Call call, final InetSocketAddress inetSocketAddress, final Proxy proxy) {
+            connectStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(final Call call) {
+            secureConnectStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(final Call call, final Handshake handshake) {
+            metrics.record(Phase.TLS, secureConnectStartNanos);
+        }
+
+        @Override
+        public void connectEnd(final Call call, final InetSocketAddress inetSocketAddress, final Proxy proxy, final Protocol protocol) {
+            metrics.record(Phase.CONNECT, connectStartNanos);
+        }
+
+        @Override
+        public void requestHeadersStart(final Call call) {
+            requestStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(final Call call, final long byteCount) {
+            metrics.sentBytes.addAndGet(byteCount);
+        }
+
+        @Override
+        public void responseHeadersStart(final Call call) {
+            // Time from sending the request until the server starts answering
+            metrics.record(Phase.TTFB, requestStartNanos);
+        }
+
+        @Override
+        public void responseBodyStart(final Call call) {
+            bodyStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyEnd(final Call call, final long byteCount) {
+            metrics.record(Phase.BODY, bodyStartNanos);
+            metrics.receivedBytes.addAndGet(byteCount);
+        }
+
+        @Override
+        public void callEnd(final Call call) {
+            metrics.record(Phase.TOTAL, callStartNanos);
+        }
+
+        @Override
+        public void callFailed(final Call call, final IOException ioe) {
+            metrics.record(Phase.TOTAL, callStartNanos);
+            metrics.failedCalls.incrementAndGet();
+        }
+    }
+}
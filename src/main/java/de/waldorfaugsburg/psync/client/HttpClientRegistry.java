@@ -0,0 +1,61 @@
+package de.waldorfaugsburg.psync.client;
+
+import de.waldorfaugsburg.psync.config.ApplicationConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide registry of OkHttp clients. Each target host gets one client owning a connection pool
+ * and dispatcher; task runs derive their clients from it via {@link OkHttpClient#newBuilder()} so
+ * connections are kept alive across runs.
+ **/
+@Slf4j
+public final class HttpClientRegistry {
+
+    private final ApplicationConfiguration.HttpConfiguration configuration;
+    private final Map<String, OkHttpClient> clients = new ConcurrentHashMap<>();
+
+    public HttpClientRegistry(final ApplicationConfiguration.HttpConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    public OkHttpClient getClient(final String url) {
+        final HttpUrl httpUrl = HttpUrl.get(url);
+        return clients.computeIfAbsent(httpUrl.host() + ":" + httpUrl.port(), host -> createClient());
+    }
+
+    public ApplicationConfiguration.HttpConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    public void logStatistics() {
+        clients.forEach((host, client) -> log.info("HTTP client '{}': {} connections ({} idle), {} running and {} queued calls",
+                host, client.connectionPool().connectionCount(), client.connectionPool().idleConnectionCount(),
+                client.dispatcher().runningCallsCount(), client.dispatcher().queuedCallsCount()));
+    }
+
+    public void shutdown() {
+        for (final OkHttpClient client : clients.values()) {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
+        clients.clear();
+    }
+
+    private OkHttpClient createClient() {
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(configuration.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(configuration.getMaxRequestsPerHost());
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(configuration.getMaxIdleConnections(), configuration.getKeepAliveSeconds(), TimeUnit.SECONDS))
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .build();
+    }
+}
@@ -0,0 +1,136 @@
+package de.waldorfaugsburg.psync.client;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base of the hand-written, reflection-free type adapters of the client models.
+ * Unknown fields are skipped, null values leave the field at its default.
+ **/
+public abstract class ModelTypeAdapter<T> extends TypeAdapter<T> {
+
+    protected static final TypeAdapter<String> STRING_ADAPTER = new TypeAdapter<>() {
+        @Override
+        public void write(final JsonWriter out, final String value) throws IOException {
+            out.value(value);
+        }
+
+        @Override
+        public String read(final JsonReader in) throws IOException {
+            return readString(in);
+        }
+    };
+
+    protected abstract T create();
+
+    protected abstract void readField(final JsonReader in, final String name, final T model) throws IOException;
+
+    protected abstract void writeFields(final JsonWriter out, final T model) throws IOException;
+
+    @Override
+    public final T read(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        final T model = create();
+        in.beginObject();
+        while (in.hasNext()) {
+            final String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            readField(in, name, model);
+        }
+        in.endObject();
+        return model;
+    }
+
+    @Override
+    public final void write(final JsonWriter out, final T model) throws IOException {
+        if (model == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        writeFields(out, model);
+        out.endObject();
+    }
+
+    protected static String readString(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        // Keep primitives other than strings in their textual form
+        if (in.peek() == JsonToken.BOOLEAN) {
+            return String.valueOf(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    protected static boolean readBoolean(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+        return in.nextBoolean();
+    }
+
+    protected static <E> List<E> readList(final JsonReader in, final TypeAdapter<E> elementAdapter) throws IOException {
+        final List<E> list = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(elementAdapter.read(in));
+        }
+        in.endArray();
+        return list;
+    }
+
+    protected static Map<String, String> readStringMap(final JsonReader in) throws IOException {
+        final Map<String, String> map = new LinkedHashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            map.put(in.nextName(), readString(in));
+        }
+        in.endObject();
+        return map;
+    }
+
+    protected static void writeStringMap(final JsonWriter out, final Map<String, String> map) throws IOException {
+        if (map == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        for (final Map.Entry<String, String> entry : map.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue());
+        }
+        out.endObject();
+    }
+
+    protected static <E> void writeList(final JsonWriter out, final List<E> list, final TypeAdapter<E> elementAdapter) throws IOException {
+        if (list == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginArray();
+        for (final E element : list) {
+            elementAdapter.write(out, element);
+        }
+        out.endArray();
+    }
+}
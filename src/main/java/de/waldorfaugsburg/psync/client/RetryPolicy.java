@@ -0,0 +1,86 @@
+package de.waldorfaugsburg.psync.client;
+
+import de.waldorfaugsburg.psync.config.ApplicationConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Request;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether and when a failed request is retried. Backoff is exponential with jitter, a server-provided
+ * Retry-After takes precedence and every client has a limited budget of retries per instance.
+ **/
+@Slf4j
+public final class RetryPolicy {
+
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "PUT", "DELETE", "OPTIONS");
+    private static final Set<Integer> RETRYABLE_STATUS_CODES = Set.of(408, 429, 502, 503, 504);
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final AtomicInteger remainingRetries;
+
+    public RetryPolicy(final ApplicationConfiguration.RetryConfiguration configuration) {
+        this.maxAttempts = configuration.getMaxAttempts();
+        this.initialBackoffMillis = configuration.getInitialBackoffMillis();
+        this.maxBackoffMillis = configuration.getMaxBackoffMillis();
+        this.remainingRetries = new AtomicInteger(configuration.getRetryBudget());
+    }
+
+    public boolean isRetryable(final Request request, final int attempt) {
+        return attempt < maxAttempts && IDEMPOTENT_METHODS.contains(request.method());
+    }
+
+    public boolean isRetryableStatus(final int statusCode) {
+        return RETRYABLE_STATUS_CODES.contains(statusCode);
+    }
+
+    /**
+     * Takes one retry from the budget and computes the delay before it, -1 if the request must not be retried
+     **/
+    public long acquireRetry(final int attempt, final String retryAfter) {
+        long delayMillis = computeBackoffMillis(attempt);
+        if (retryAfter != null) {
+            final long retryAfterMillis = parseRetryAfterMillis(retryAfter);
+            // Don't wait longer than the maximum backoff - fail instead
+            if (retryAfterMillis > maxBackoffMillis) {
+                return -1;
+            }
+            delayMillis = Math.max(0, retryAfterMillis);
+        }
+
+        if (remainingRetries.getAndUpdate(remaining -> Math.max(0, remaining - 1)) == 0) {
+            log.warn("Retry budget exhausted");
+            return -1;
+        }
+        return delayMillis;
+    }
+
+    private long computeBackoffMillis(final int attempt) {
+        final long exponentialMillis = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+        // Equal jitter: wait at least half of the exponential delay
+        return exponentialMillis / 2 + ThreadLocalRandom.current().nextLong(exponentialMillis / 2 + 1);
+    }
+
+    private long parseRetryAfterMillis(final String retryAfter) {
+        // Either delay in seconds or an HTTP date
+        try {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (final NumberFormatException ignored) {
+        }
+
+        try {
+            final ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Duration.between(ZonedDateTime.now(), date).toMillis();
+        } catch (final DateTimeParseException e) {
+            return computeBackoffMillis(1);
+        }
+    }
+}
@@ -1,61 +1,71 @@
 package de.waldorfaugsburg.psync.client.ews;
 
-import com.microsoft.aad.msal4j.*;
 import de.waldorfaugsburg.psync.ProcuratSyncApplication;
 import de.waldorfaugsburg.psync.client.AbstractClient;
+import de.waldorfaugsburg.psync.client.ews.model.EWSContactData;
+import de.waldorfaugsburg.psync.client.ews.model.EWSFolderChanges;
+import de.waldorfaugsburg.psync.client.ews.model.EWSItemChange;
 import lombok.extern.slf4j.Slf4j;
 import microsoft.exchange.webservices.data.core.ExchangeService;
 import microsoft.exchange.webservices.data.core.PropertySet;
-import microsoft.exchange.webservices.data.core.enumeration.misc.ConnectingIdType;
-import microsoft.exchange.webservices.data.core.enumeration.misc.ExchangeVersion;
+import microsoft.exchange.webservices.data.core.enumeration.misc.error.ServiceError;
 import microsoft.exchange.webservices.data.core.enumeration.property.*;
 import microsoft.exchange.webservices.data.core.enumeration.service.ConflictResolutionMode;
 import microsoft.exchange.webservices.data.core.enumeration.service.DeleteMode;
+import microsoft.exchange.webservices.data.core.enumeration.service.ServiceResult;
+import microsoft.exchange.webservices.data.core.enumeration.service.SyncFolderItemsScope;
+import microsoft.exchange.webservices.data.core.enumeration.sync.ChangeType;
+import microsoft.exchange.webservices.data.core.response.GetItemResponse;
+import microsoft.exchange.webservices.data.core.response.ServiceResponse;
+import microsoft.exchange.webservices.data.core.response.ServiceResponseCollection;
+import microsoft.exchange.webservices.data.core.response.UpdateItemResponse;
 import microsoft.exchange.webservices.data.core.service.folder.Folder;
 import microsoft.exchange.webservices.data.core.service.item.Contact;
 import microsoft.exchange.webservices.data.core.service.item.ContactGroup;
-import microsoft.exchange.webservices.data.misc.ImpersonatedUserId;
+import microsoft.exchange.webservices.data.core.service.item.Item;
+import microsoft.exchange.webservices.data.core.service.schema.ContactGroupSchema;
+import microsoft.exchange.webservices.data.core.service.schema.ItemSchema;
+import microsoft.exchange.webservices.data.misc.OutParam;
 import microsoft.exchange.webservices.data.property.complex.*;
 import microsoft.exchange.webservices.data.property.definition.ExtendedPropertyDefinition;
+import microsoft.exchange.webservices.data.search.FindItemsResults;
 import microsoft.exchange.webservices.data.search.ItemView;
 import microsoft.exchange.webservices.data.search.filter.SearchFilter;
+import microsoft.exchange.webservices.data.sync.ChangeCollection;
+import microsoft.exchange.webservices.data.sync.ItemChange;
 
-import java.net.URI;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
+import java.util.*;
 
 @Slf4j
 public final class EWSClient extends AbstractClient {
 
-    private static final String EWS_URL = "https://outlook.office365.com/EWS/Exchange.asmx";
-    private static final String EWS_SCOPE = "https://outlook.office365.com/.default";
-    private static final String EWS_AUTHORITY = "https://login.microsoftonline.com/%s/";
+    private static final String CONTACT_GROUP_ITEM_CLASS = "IPM.DistList";
+    // Maximum number of changes EWS returns per SyncFolderItems call
+    private static final int MAX_SYNC_CHANGES = 512;
+    private static final int PAGE_SIZE = 500;
     private static final ExtendedPropertyDefinition PROCURAT_ID_PROPERTY;
+    private static final PropertySet SYNC_PROPERTY_SET;
 
     static {
         try {
             PROCURAT_ID_PROPERTY = new ExtendedPropertyDefinition(UUID.fromString("757f160d-68cf-4dbb-8c5f-feab33b86145"), "ProcuratId", MapiPropertyType.Integer);
+            SYNC_PROPERTY_SET = new PropertySet(BasePropertySet.IdOnly, PROCURAT_ID_PROPERTY);
         } catch (final Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private final String clientId;
-    private final String tenantId;
-    private final String clientSecret;
-    private final String impersonatedUserId;
-    private final String contactFolderId;
+    private final EWSSession session;
+    private final EWSThrottle throttle;
+    private final int batchSize;
 
     private ExchangeService service;
     private Folder contactFolder;
 
     EWSClient(final ProcuratSyncApplication application) {
-        this.clientId = application.getConfiguration().getClients().getEws().getClientId();
-        this.tenantId = application.getConfiguration().getClients().getEws().getTenantId();
-        this.clientSecret = application.getConfiguration().getClients().getEws().getClientSecret();
-        this.impersonatedUserId = application.getConfiguration().getClients().getEws().getImpersonatedUserId();
-        this.contactFolderId = application.getConfiguration().getClients().getEws().getContactFolderId();
+        this.session = application.getEwsSession();
+        this.throttle = new EWSThrottle(application.getConfiguration().getClients().getEws());
+        this.batchSize = application.getConfiguration().getClients().getEws().getBatchSize();
     }
 
     public static EWSClient createInstance(final ProcuratSyncApplication application) throws Exception {
@@ -66,22 +76,14 @@ public final class EWSClient extends AbstractClient {
 
     @Override
     protected void setup() throws Exception {
-        final IClientCredential credential = ClientCredentialFactory.createFromSecret(clientSecret);
-        final ConfidentialClientApplication confidentialClientApplication = ConfidentialClientApplication.builder(clientId, credential).authority(String.format(EWS_AUTHORITY, tenantId)).build();
-        final ClientCredentialParameters parameters = ClientCredentialParameters.builder(Set.of(EWS_SCOPE)).build();
-        final IAuthenticationResult result = confidentialClientApplication.acquireToken(parameters).join();
-
-        service = new ExchangeService(ExchangeVersion.Exchange2010_SP2);
-        service.getHttpHeaders().put("Authorization", "Bearer " + result.accessToken());
-        service.setUrl(new URI(EWS_URL));
-        service.setImpersonatedUserId(new ImpersonatedUserId(ConnectingIdType.SmtpAddress, impersonatedUserId));
-
-        contactFolder = service.bindToFolder(FolderId.getFolderIdFromString(contactFolderId), PropertySet.IdOnly);
+        // Token, service and folder binding are reused from previous runs
+        service = session.getService();
+        contactFolder = session.getContactFolder();
     }
 
     public boolean deleteAllContacts() {
         try {
-            contactFolder.empty(DeleteMode.HardDelete, false);
+            run(() -> contactFolder.empty(DeleteMode.HardDelete, false));
             return true;
         } catch (final Exception e) {
             log.error("Error deleting all contacts", e);
@@ -91,52 +93,193 @@ public final class EWSClient extends AbstractClient {
 
     public Contact findContactByPersonId(final int personId) {
         try {
-            return (Contact) contactFolder.findItems(new SearchFilter.IsEqualTo(PROCURAT_ID_PROPERTY, personId), new ItemView(1)).getItems().getFirst();
+            return (Contact) call(() -> contactFolder.findItems(new SearchFilter.IsEqualTo(PROCURAT_ID_PROPERTY, personId), new ItemView(1))).getItems().getFirst();
         } catch (final Exception e) {
             log.error("Error finding contact by person id {}", personId);
             return null;
         }
     }
 
-    public Contact createContact(final int personId, final String firstName, final String lastName, final String privateEmail, final String workEmail, final String homePhone, final String mobilePhone, final String city, final String postalCode, final String street, final String note) {
-        final String fullName = lastName + " " + firstName;
+    /**
+     * Returns all changes in the contact folder since the given sync state (everything if null),
+     * except for changes to the ignored items (e.g. those written by ourselves)
+     **/
+    public EWSFolderChanges syncContacts(final String syncState, final Collection<String> ignoredItemIds) throws Exception {
+        final List<ItemId> ignoredIds = new ArrayList<>();
+        for (final String itemId : ignoredItemIds) {
+            ignoredIds.add(new ItemId(itemId));
+        }
 
+        final List<EWSItemChange> changes = new ArrayList<>();
+        String state = syncState;
+        ChangeCollection<ItemChange> collection;
+        do {
+            final String previousState = state;
+            collection = call(() -> service.syncFolderItems(contactFolder.getId(), SYNC_PROPERTY_SET, ignoredIds,
+                    MAX_SYNC_CHANGES, SyncFolderItemsScope.NormalItems, previousState));
+            for (final ItemChange change : collection) {
+                Integer personId = null;
+                if (change.getChangeType() != ChangeType.Delete && change.getItem() != null) {
+                    final OutParam<Integer> outParam = new OutParam<>();
+                    if (change.getItem().getExtendedProperties().tryGetValue(Integer.class, PROCURAT_ID_PROPERTY, outParam)) {
+                        personId = outParam.getParam();
+                    }
+                }
+                changes.add(new EWSItemChange(change.getChangeType(), change.getItemId().getUniqueId(), personId));
+            }
+            state = collection.getSyncState();
+        } while (collection.getMoreChangesAvailable());
+
+        log.info("Synchronized {} changes of contact folder", changes.size());
+        return new EWSFolderChanges(state, changes);
+    }
+
+    public String createContact(final EWSContactData data) {
         try {
             final Contact contact = new Contact(service);
-            contact.setGivenName(firstName);
-            contact.setSurname(lastName);
-            contact.setDisplayName(fullName);
+            populateContact(contact, data);
+            run(() -> contact.save(contactFolder.getId()));
+            log.info("Created contact (name: {})", data.getDisplayName());
+            return contact.getId().getUniqueId();
+        } catch (final Exception e) {
+            log.error("Error adding contact {}", data.getDisplayName(), e);
+            return null;
+        }
+    }
 
-            if (privateEmail != null) {
-                contact.getEmailAddresses().setEmailAddress(EmailAddressKey.EmailAddress1, new EmailAddress(fullName, privateEmail));
+    public ContactBatch createContactBatch() {
+        return new ContactBatch();
+    }
+
+    /**
+     * Deletes the given items and returns item id -> error of all items that couldn't be deleted.
+     * Items that don't exist anymore count as deleted.
+     **/
+    public Map<String, String> deleteItems(final Collection<String> itemIds) {
+        final Map<String, String> errors = new HashMap<>();
+        if (itemIds.isEmpty()) {
+            return errors;
+        }
+
+        final List<String> itemIdList = new ArrayList<>(itemIds);
+        try {
+            final Map<String, ServiceResponse> responses = submit(itemIdList, batch ->
+                    service.deleteItems(toItemIds(batch), DeleteMode.HardDelete, null, null));
+            for (final String itemId : itemIdList) {
+                final ServiceResponse response = responses.get(itemId);
+                if (response.getResult() == ServiceResult.Error && response.getErrorCode() != ServiceError.ErrorItemNotFound) {
+                    errors.put(itemId, response.getErrorCode() + ": " + response.getErrorMessage());
+                }
+            }
+            log.info("Deleted {} items ({} failed)", itemIdList.size() - errors.size(), errors.size());
+        } catch (final Exception e) {
+            log.error("Error deleting {} items", itemIdList.size(), e);
+            for (final String itemId : itemIdList) {
+                errors.put(itemId, e.getMessage());
             }
+        }
+        return errors;
+    }
+
+    /**
+     * Finds the item ids of all contact groups by display name. Groups sharing a display name with
+     * another group are deleted, so every name maps to exactly one group.
+     **/
+    public Map<String, String> findContactGroups() {
+        try {
+            final Map<String, String> groupItemIds = new HashMap<>();
+            final List<String> duplicateItemIds = new ArrayList<>();
+            final ItemView view = new ItemView(PAGE_SIZE);
+            view.setPropertySet(new PropertySet(BasePropertySet.IdOnly, ContactGroupSchema.DisplayName));
+            FindItemsResults<Item> results;
+            do {
+                results = call(() -> contactFolder.findItems(new SearchFilter.IsEqualTo(ItemSchema.ItemClass, CONTACT_GROUP_ITEM_CLASS), view));
+                for (final Item item : results.getItems()) {
+                    final String displayName = ((ContactGroup) item).getDisplayName();
+                    if (groupItemIds.putIfAbsent(displayName, item.getId().getUniqueId()) != null) {
+                        duplicateItemIds.add(item.getId().getUniqueId());
+                    }
+                }
+                view.setOffset(view.getOffset() + results.getItems().size());
+            } while (results.isMoreAvailable());
 
-            if (workEmail != null) {
-                contact.getEmailAddresses().setEmailAddress(EmailAddressKey.EmailAddress2, new EmailAddress(fullName, workEmail));
+            if (!duplicateItemIds.isEmpty()) {
+                log.info("Deleting {} duplicate contact groups", duplicateItemIds.size());
+                deleteItems(duplicateItemIds).forEach((itemId, error) -> log.warn("Unable to delete duplicate contact group {}: {}", itemId, error));
+            }
+            return groupItemIds;
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not find contact groups", e);
+        }
+    }
+
+    private void populateContact(final Contact contact, final EWSContactData data) throws Exception {
+        final String fullName = data.getDisplayName();
+        contact.setGivenName(data.getFirstName());
+        contact.setSurname(data.getLastName());
+        contact.setDisplayName(fullName);
+
+        // Null values remove the entry of an existing contact
+        contact.getEmailAddresses().setEmailAddress(EmailAddressKey.EmailAddress1,
+                data.getPrivateEmail() == null ? null : new EmailAddress(fullName, data.getPrivateEmail()));
+        contact.getEmailAddresses().setEmailAddress(EmailAddressKey.EmailAddress2,
+                data.getWorkEmail() == null ? null : new EmailAddress(fullName, data.getWorkEmail()));
+        contact.getPhoneNumbers().setPhoneNumber(PhoneNumberKey.HomePhone, data.getHomePhone());
+        contact.getPhoneNumbers().setPhoneNumber(PhoneNumberKey.MobilePhone, data.getMobilePhone());
+
+        final PhysicalAddressEntry physicalAddressEntry = new PhysicalAddressEntry();
+        physicalAddressEntry.setCity(data.getCity());
+        physicalAddressEntry.setPostalCode(data.getPostalCode());
+        physicalAddressEntry.setStreet(data.getStreet());
+        contact.getPhysicalAddresses().setPhysicalAddress(PhysicalAddressKey.Home, physicalAddressEntry);
+        contact.setPostalAddressIndex(PhysicalAddressIndex.Home);
+        contact.setBody(new MessageBody(data.getNote()));
+        contact.setExtendedProperty(PROCURAT_ID_PROPERTY, data.getPersonId());
+    }
+
+    /**
+     * Brings the members of an existing contact group in line with the given display name -> address map,
+     * writing only added and removed members. Creates the group if there's no item id.
+     **/
+    public void reconcileContactGroup(final String groupName, final String itemId, final Map<String, String> displayNameAddressMap) {
+        if (itemId == null) {
+            createContactGroup(groupName, displayNameAddressMap);
+            return;
+        }
+
+        try {
+            final ContactGroup contactGroup = call(() -> ContactGroup.bind(service, new ItemId(itemId), new PropertySet(BasePropertySet.IdOnly, ContactGroupSchema.Members)));
+            final GroupMemberCollection members = contactGroup.getMembers();
+
+            // Keep members with the same name and address, remove all others
+            final Map<String, String> addedMembers = new HashMap<>(displayNameAddressMap);
+            final List<GroupMember> removedMembers = new ArrayList<>();
+            for (final GroupMember member : members) {
+                final EmailAddress address = member.getAddressInformation();
+                if (address != null && address.getAddress() != null
+                        && address.getAddress().equalsIgnoreCase(addedMembers.get(address.getName()))) {
+                    addedMembers.remove(address.getName());
+                } else {
+                    removedMembers.add(member);
+                }
             }
 
-            if (homePhone != null) {
-                contact.getPhoneNumbers().setPhoneNumber(PhoneNumberKey.HomePhone, homePhone);
+            if (addedMembers.isEmpty() && removedMembers.isEmpty()) {
+                log.info("Contact group {} is up to date", groupName);
+                return;
             }
 
-            if (mobilePhone != null) {
-                contact.getPhoneNumbers().setPhoneNumber(PhoneNumberKey.MobilePhone, mobilePhone);
+            for (final GroupMember member : removedMembers) {
+                members.remove(member);
+            }
+            for (final Map.Entry<String, String> entry : addedMembers.entrySet()) {
+                members.addOneOff(entry.getKey(), entry.getValue());
             }
 
-            final PhysicalAddressEntry physicalAddressEntry = new PhysicalAddressEntry();
-            physicalAddressEntry.setCity(city);
-            physicalAddressEntry.setPostalCode(postalCode);
-            physicalAddressEntry.setStreet(street);
-            contact.getPhysicalAddresses().setPhysicalAddress(PhysicalAddressKey.Home, physicalAddressEntry);
-            contact.setPostalAddressIndex(PhysicalAddressIndex.Home);
-            contact.setBody(new MessageBody(note));
-            contact.setExtendedProperty(PROCURAT_ID_PROPERTY, personId);
-            contact.save(contactFolder.getId());
-            log.info("Created contact (name: {})", fullName);
-            return contact;
+            run(() -> contactGroup.update(ConflictResolutionMode.AlwaysOverwrite));
+            log.info("Updated contact group {} (added {}, removed {} members)", groupName, addedMembers.size(), removedMembers.size());
         } catch (final Exception e) {
-            log.error("Error adding contact {}", fullName, e);
-            return null;
+            log.error("Error updating contact group {}", groupName, e);
         }
     }
 
@@ -144,7 +287,7 @@ public final class EWSClient extends AbstractClient {
         try {
             final ContactGroup contactGroup = new ContactGroup(service);
             contactGroup.setDisplayName(groupName);
-            contactGroup.save(contactFolder.getId());
+            run(() -> contactGroup.save(contactFolder.getId()));
 
             displayNameAddressMap.forEach((displayName, address) -> {
                 try {
@@ -155,15 +298,215 @@ public final class EWSClient extends AbstractClient {
                 }
             });
 
-            contactGroup.update(ConflictResolutionMode.AlwaysOverwrite);
+            run(() -> contactGroup.update(ConflictResolutionMode.AlwaysOverwrite));
             log.info("Created contact group {} with {} contacts", groupName, displayNameAddressMap.size());
         } catch (final Exception e) {
             log.error("Error adding contact group {}", groupName, e);
         }
     }
 
+    /**
+     * Time this client spent waiting for a busy Exchange
+     **/
+    public long getThrottledMillis() {
+        return throttle.getThrottledMillis();
+    }
+
+    private <T> T call(final EWSSession.EWSCall<T> call) throws Exception {
+        return throttle.call(() -> session.call(call));
+    }
+
+    private void run(final EWSSession.EWSAction action) throws Exception {
+        call(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Submits the entries with one multi-item call and resubmits those Exchange rejected as busy after backing off.
+     * Returns the last response of every entry keyed by identity; entries that stayed busy keep their error.
+     **/
+    private <T, R extends ServiceResponse> Map<T, R> submit(final List<T> entries, final BatchRequest<T, R> request) throws Exception {
+        final Map<T, R> responses = new IdentityHashMap<>();
+        List<T> pending = entries;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            final List<T> batch = pending;
+            final ServiceResponseCollection<R> collection = call(() -> request.submit(batch));
+
+            // Responses are in the order of the entries
+            final List<T> busyEntries = new ArrayList<>();
+            R busyResponse = null;
+            for (int i = 0; i < collection.getCount(); i++) {
+                final R response = collection.getResponseAtIndex(i);
+                responses.put(batch.get(i), response);
+                if (response.getResult() == ServiceResult.Error && response.getErrorCode() == ServiceError.ErrorServerBusy) {
+                    busyEntries.add(batch.get(i));
+                    busyResponse = response;
+                }
+            }
+
+            if (busyEntries.isEmpty() || !throttle.backOff(busyResponse, attempt)) {
+                break;
+            }
+            pending = busyEntries;
+        }
+        return responses;
+    }
+
+    private static List<ItemId> toItemIds(final List<String> itemIds) throws Exception {
+        final List<ItemId> ids = new ArrayList<>();
+        for (final String itemId : itemIds) {
+            ids.add(new ItemId(itemId));
+        }
+        return ids;
+    }
+
     @Override
     public void close() throws Exception {
-        service.close();
+        log.info("Throttled for {}ms ({} busy responses)", throttle.getThrottledMillis(), throttle.getBusyCount());
+        // The session is owned by the application and outlives this client
+    }
+
+    /**
+     * Collects contacts to create or update and writes them with one CreateItem/UpdateItem request per
+     * batch. Failures are tracked per person; updates of contacts that no longer exist become creates.
+     **/
+    public final class ContactBatch {
+
+        private final List<EWSContactData> pendingCreates = new ArrayList<>();
+        private final Map<String, EWSContactData> pendingUpdates = new LinkedHashMap<>();
+        private final Map<Integer, String> writtenItemIds = new HashMap<>();
+        private final Map<Integer, String> errors = new HashMap<>();
+
+        private ContactBatch() {
+        }
+
+        public void create(final EWSContactData data) {
+            pendingCreates.add(data);
+            if (pendingCreates.size() >= batchSize) {
+                flushCreates();
+            }
+        }
+
+        public void update(final String itemId, final EWSContactData data) {
+            pendingUpdates.put(itemId, data);
+            if (pendingUpdates.size() >= batchSize) {
+                flushUpdates();
+            }
+        }
+
+        public void flush() {
+            flushUpdates();
+            flushCreates();
+        }
+
+        /**
+         * Person id -> item id of all successfully written contacts
+         **/
+        public Map<Integer, String> getWrittenItemIds() {
+            return writtenItemIds;
+        }
+
+        /**
+         * Person id -> error of all contacts that couldn't be written
+         **/
+        public Map<Integer, String> getErrors() {
+            return errors;
+        }
+
+        private void flushCreates() {
+            if (pendingCreates.isEmpty()) {
+                return;
+            }
+
+            final List<EWSContactData> creates = new ArrayList<>(pendingCreates);
+            pendingCreates.clear();
+            try {
+                final Map<EWSContactData, Item> contacts = new IdentityHashMap<>();
+                for (final EWSContactData data : creates) {
+                    final Contact contact = new Contact(service);
+                    populateContact(contact, data);
+                    contacts.put(data, contact);
+                }
+
+                final Map<EWSContactData, ServiceResponse> responses = submit(creates, batch ->
+                        service.createItems(batch.stream().map(contacts::get).toList(), contactFolder.getId(), null, null));
+                for (final EWSContactData data : creates) {
+                    final ServiceResponse response = responses.get(data);
+                    if (response.getResult() == ServiceResult.Error) {
+                        errors.put(data.getPersonId(), response.getErrorCode() + ": " + response.getErrorMessage());
+                    } else {
+                        writtenItemIds.put(data.getPersonId(), contacts.get(data).getId().getUniqueId());
+                    }
+                }
+                log.info("Created batch of {} contacts", creates.size());
+            } catch (final Exception e) {
+                log.error("Error creating batch of {} contacts", creates.size(), e);
+                for (final EWSContactData data : creates) {
+                    errors.put(data.getPersonId(), e.getMessage());
+                }
+            }
+        }
+
+        private void flushUpdates() {
+            if (pendingUpdates.isEmpty()) {
+                return;
+            }
+
+            final Map<String, EWSContactData> updates = new LinkedHashMap<>(pendingUpdates);
+            pendingUpdates.clear();
+            final List<String> itemIds = new ArrayList<>(updates.keySet());
+            try {
+                // Bind all contacts at once, then change and write them at once
+                final Map<String, GetItemResponse> bindResponses = submit(itemIds, batch ->
+                        service.bindToItems(toItemIds(batch), PropertySet.FirstClassProperties));
+                final Map<String, Item> contacts = new IdentityHashMap<>();
+                final List<String> boundItemIds = new ArrayList<>();
+                for (final String itemId : itemIds) {
+                    final GetItemResponse response = bindResponses.get(itemId);
+                    final EWSContactData data = updates.get(itemId);
+                    if (response.getResult() != ServiceResult.Error) {
+                        populateContact((Contact) response.getItem(), data);
+                        contacts.put(itemId, response.getItem());
+                        boundItemIds.add(itemId);
+                    } else if (response.getErrorCode() == ServiceError.ErrorItemNotFound) {
+                        pendingCreates.add(data);
+                    } else {
+                        errors.put(data.getPersonId(), response.getErrorCode() + ": " + response.getErrorMessage());
+                    }
+                }
+
+                if (!boundItemIds.isEmpty()) {
+                    final Map<String, UpdateItemResponse> responses = submit(boundItemIds, batch ->
+                            service.updateItems(batch.stream().map(contacts::get).toList(), null,
+                                    ConflictResolutionMode.AlwaysOverwrite, null, null));
+                    for (final String itemId : boundItemIds) {
+                        final UpdateItemResponse response = responses.get(itemId);
+                        final EWSContactData data = updates.get(itemId);
+                        if (response.getResult() == ServiceResult.Error) {
+                            errors.put(data.getPersonId(), response.getErrorCode() + ": " + response.getErrorMessage());
+                        } else {
+                            writtenItemIds.put(data.getPersonId(), itemId);
+                        }
+                    }
+                }
+                log.info("Updated batch of {} contacts", boundItemIds.size());
+            } catch (final Exception e) {
+                log.error("Error updating batch of {} contacts", updates.size(), e);
+                for (final EWSContactData data : updates.values()) {
+                    errors.put(data.getPersonId(), e.getMessage());
+                }
+            }
+
+            if (pendingCreates.size() >= batchSize) {
+                flushCreates();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface BatchRequest<T, R extends ServiceResponse> {
+        ServiceResponseCollection<R> submit(List<T> entries) throws Exception;
     }
 }
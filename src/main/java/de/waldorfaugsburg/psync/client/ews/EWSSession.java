@@ -0,0 +1,132 @@
+package de.waldorfaugsburg.psync.client.ews;
+
+import com.microsoft.aad.msal4j.*;
+import de.waldorfaugsburg.psync.config.ApplicationConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import microsoft.exchange.webservices.data.core.ExchangeService;
+import microsoft.exchange.webservices.data.core.PropertySet;
+import microsoft.exchange.webservices.data.core.enumeration.misc.ConnectingIdType;
+import microsoft.exchange.webservices.data.core.enumeration.misc.ExchangeVersion;
+import microsoft.exchange.webservices.data.core.exception.http.HttpErrorException;
+import microsoft.exchange.webservices.data.core.service.folder.Folder;
+import microsoft.exchange.webservices.data.misc.ImpersonatedUserId;
+import microsoft.exchange.webservices.data.property.complex.FolderId;
+
+import java.net.URI;
+import java.util.Set;
+
+/**
+ * Process-wide EWS session shared by all task runs. The MSAL application (and with it its in-memory token
+ * cache), the {@link ExchangeService} and the contact folder binding are created once; the access token is
+ * refreshed shortly before it expires and re-acquired whenever EWS rejects it.
+ **/
+@Slf4j
+public final class EWSSession implements AutoCloseable {
+
+    private static final String EWS_URL = "https://outlook.office365.com/EWS/Exchange.asmx";
+    private static final String EWS_SCOPE = "https://outlook.office365.com/.default";
+    private static final String EWS_AUTHORITY = "https://login.microsoftonline.com/%s/";
+    // Tokens are refreshed this long before they expire
+    private static final long TOKEN_REFRESH_MARGIN_MILLIS = 5 * 60 * 1000;
+
+    private final ApplicationConfiguration.EWSClientConfiguration configuration;
+
+    private ConfidentialClientApplication clientApplication;
+    private ExchangeService service;
+    private Folder contactFolder;
+    private long tokenExpiryMillis;
+
+    public EWSSession(final ApplicationConfiguration.EWSClientConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    public synchronized ExchangeService getService() throws Exception {
+        if (service == null) {
+            service = new ExchangeService(ExchangeVersion.Exchange2010_SP2);
+            service.setUrl(new URI(EWS_URL));
+            service.setImpersonatedUserId(new ImpersonatedUserId(ConnectingIdType.SmtpAddress, configuration.getImpersonatedUserId()));
+        }
+        refreshToken(false);
+        return service;
+    }
+
+    public synchronized Folder getContactFolder() throws Exception {
+        final ExchangeService exchangeService = getService();
+        if (contactFolder == null) {
+            contactFolder = call(() -> exchangeService.bindToFolder(FolderId.getFolderIdFromString(configuration.getContactFolderId()), PropertySet.IdOnly));
+        }
+        return contactFolder;
+    }
+
+    /**
+     * Executes an EWS call, retrying it once with a new access token if EWS rejects the current one
+     **/
+    public <T> T call(final EWSCall<T> call) throws Exception {
+        refreshToken(false);
+        try {
+            return call.call();
+        } catch (final Exception e) {
+            if (!isUnauthorized(e)) {
+                throw e;
+            }
+
+            log.info("EWS rejected the access token, acquiring a new one");
+            refreshToken(true);
+            return call.call();
+        }
+    }
+
+    public void run(final EWSAction action) throws Exception {
+        call(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private synchronized void refreshToken(final boolean force) throws Exception {
+        if (service == null || (!force && System.currentTimeMillis() < tokenExpiryMillis - TOKEN_REFRESH_MARGIN_MILLIS)) {
+            return;
+        }
+
+        if (clientApplication == null) {
+            final IClientCredential credential = ClientCredentialFactory.createFromSecret(configuration.getClientSecret());
+            clientApplication = ConfidentialClientApplication.builder(configuration.getClientId(), credential)
+                    .authority(String.format(EWS_AUTHORITY, configuration.getTenantId())).build();
+        }
+
+        // The token cache answers unless the token is about to expire or was rejected
+        final ClientCredentialParameters parameters = ClientCredentialParameters.builder(Set.of(EWS_SCOPE)).skipCache(force).build();
+        final IAuthenticationResult result = clientApplication.acquireToken(parameters).join();
+        service.getHttpHeaders().put("Authorization", "Bearer " + result.accessToken());
+        tokenExpiryMillis = result.expiresOnDate().getTime();
+        log.info("Acquired EWS access token valid until {}", result.expiresOnDate());
+    }
+
+    private static boolean isUnauthorized(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof final HttpErrorException httpError && httpError.getHttpErrorCode() == 401) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (service != null) {
+            service.close();
+            service = null;
+            contactFolder = null;
+        }
+    }
+
+    @FunctionalInterface
+    public interface EWSCall<T> {
+        T call() throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface EWSAction {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,112 @@
+package de.waldorfaugsburg.psync.client.ews;
+
+import de.waldorfaugsburg.psync.config.ApplicationConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import microsoft.exchange.webservices.data.core.enumeration.misc.error.ServiceError;
+import microsoft.exchange.webservices.data.core.exception.service.remote.ServiceResponseException;
+import microsoft.exchange.webservices.data.core.response.ServiceResponse;
+
+import java.util.Map;
+
+/**
+ * Adapts the pace of EWS calls to the load of Exchange. Calls (or single items of multi-item calls) rejected
+ * with ErrorServerBusy are retried after the BackOffMilliseconds requested by the server and the following
+ * calls are spaced out; every successful call halves the spacing again until calls go out back to back.
+ **/
+@Slf4j
+public final class EWSThrottle {
+
+    private static final String BACK_OFF_DETAIL = "BackOffMilliseconds";
+    // Used if Exchange doesn't tell how long to back off
+    private static final long DEFAULT_BACK_OFF_MILLIS = 5000;
+    private static final long MIN_DELAY_MILLIS = 100;
+
+    private final int maxRetries;
+    private final long maxDelayMillis;
+
+    private long delayMillis;
+    private long throttledMillis;
+    private int busyCount;
+
+    public EWSThrottle(final ApplicationConfiguration.EWSClientConfiguration configuration) {
+        this.maxRetries = configuration.getMaxBusyRetries();
+        this.maxDelayMillis = configuration.getMaxThrottleDelayMillis();
+    }
+
+    public <T> T call(final EWSSession.EWSCall<T> call) throws Exception {
+        pause(delayMillis);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final T result = call.call();
+                // Speed up again
+                delayMillis = delayMillis / 2 < MIN_DELAY_MILLIS ? 0 : delayMillis / 2;
+                return result;
+            } catch (final Exception e) {
+                final ServiceResponseException busyException = findBusyException(e);
+                if (busyException == null || !backOff(busyException.getResponse(), attempt)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Backs off after Exchange rejected a call or single items of a multi-item call as busy.
+     * Returns false without waiting if the given attempt was the last one.
+     **/
+    public boolean backOff(final ServiceResponse busyResponse, final int attempt) throws InterruptedException {
+        if (attempt > maxRetries) {
+            return false;
+        }
+
+        busyCount++;
+        delayMillis = Math.min(maxDelayMillis, Math.max(MIN_DELAY_MILLIS, delayMillis * 2));
+        final long backOffMillis = getBackOffMillis(busyResponse.getErrorDetails());
+        log.warn("Exchange is busy, retrying in {}ms (attempt {}, spacing calls by {}ms)", backOffMillis, attempt, delayMillis);
+        pause(backOffMillis);
+        return true;
+    }
+
+    /**
+     * Total time spent waiting for Exchange, both backing off and spacing out calls
+     **/
+    public long getThrottledMillis() {
+        return throttledMillis;
+    }
+
+    public int getBusyCount() {
+        return busyCount;
+    }
+
+    private void pause(final long millis) throws InterruptedException {
+        if (millis <= 0) {
+            return;
+        }
+
+        Thread.sleep(millis);
+        throttledMillis += millis;
+    }
+
+    private static long getBackOffMillis(final Map<String, String> errorDetails) {
+        final String backOff = errorDetails == null ? null : errorDetails.get(BACK_OFF_DETAIL);
+        if (backOff == null) {
+            return DEFAULT_BACK_OFF_MILLIS;
+        }
+
+        try {
+            return Long.parseLong(backOff.trim());
+        } catch (final NumberFormatException e) {
+            return DEFAULT_BACK_OFF_MILLIS;
+        }
+    }
+
+    private static ServiceResponseException findBusyException(final Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof final ServiceResponseException responseException
+                    && responseException.getErrorCode() == ServiceError.ErrorServerBusy) {
+                return responseException;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,36 @@
+package de.waldorfaugsburg.psync.client.ews.model;
+
+import de.waldorfaugsburg.psync.state.Fingerprint;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Everything a contact in the EWS contact folder is made of
+ **/
+@AllArgsConstructor
+@Getter
+@ToString
+public final class EWSContactData {
+
+    private final int personId;
+    private final String firstName;
+    private final String lastName;
+    private final String privateEmail;
+    private final String workEmail;
+    private final String homePhone;
+    private final String mobilePhone;
+    private final String city;
+    private final String postalCode;
+    private final String street;
+    private final String note;
+
+    public String getDisplayName() {
+        return lastName + " " + firstName;
+    }
+
+    public String getFingerprint() {
+        return Fingerprint.of(personId, firstName, lastName, privateEmail, workEmail, homePhone, mobilePhone,
+                city, postalCode, street, note);
+    }
+}
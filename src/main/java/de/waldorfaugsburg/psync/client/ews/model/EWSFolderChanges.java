@@ -0,0 +1,18 @@
+package de.waldorfaugsburg.psync.client.ews.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * All changes since a sync state together with the sync state to continue from next time
+ **/
+@AllArgsConstructor
+@Getter
+public final class EWSFolderChanges {
+
+    private final String syncState;
+    private final List<EWSItemChange> changes;
+
+}
@@ -0,0 +1,21 @@
+package de.waldorfaugsburg.psync.client.ews.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import microsoft.exchange.webservices.data.core.enumeration.sync.ChangeType;
+
+/**
+ * Change of an item in the contact folder as reported by SyncFolderItems. The person id is
+ * only known for created or updated contacts carrying the Procurat id property.
+ **/
+@AllArgsConstructor
+@Getter
+@ToString
+public final class EWSItemChange {
+
+    private final ChangeType changeType;
+    private final String itemId;
+    private final Integer personId;
+
+}
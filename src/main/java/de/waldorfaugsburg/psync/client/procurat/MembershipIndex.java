@@ -0,0 +1,123 @@
+package de.waldorfaugsburg.psync.client.procurat;
+
+import de.waldorfaugsburg.psync.client.procurat.model.ProcuratGroupMembership;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Read-only index of group memberships by person id. Entry and exit dates are copied into flat arrays,
+ * lookups are answered from an open-addressing int hash table without scanning or allocating.
+ **/
+public final class MembershipIndex {
+
+    private final int mask;
+    private final int[] slotPersonIds;
+    private final int[] slotOffsets;
+    // A count of 0 marks an empty slot
+    private final int[] slotCounts;
+
+    private final long[] entrySeconds;
+    private final long[] exitSeconds;
+    private final ProcuratGroupMembership[] memberships;
+    private final int personCount;
+
+    public MembershipIndex(final List<ProcuratGroupMembership> memberships) {
+        // Stable sort keeps the original order of memberships per person
+        this.memberships = memberships.toArray(new ProcuratGroupMembership[0]);
+        Arrays.sort(this.memberships, Comparator.comparingInt(ProcuratGroupMembership::getPersonId));
+
+        this.entrySeconds = new long[this.memberships.length];
+        this.exitSeconds = new long[this.memberships.length];
+        int persons = 0;
+        for (int i = 0; i < this.memberships.length; i++) {
+            final ProcuratGroupMembership membership = this.memberships[i];
+            entrySeconds[i] = membership.getEntryDate();
+            exitSeconds[i] = membership.getExitDate();
+
+            if (i == 0 || this.memberships[i - 1].getPersonId() != membership.getPersonId()) {
+                persons++;
+            }
+        }
+        this.personCount = persons;
+
+        // Keep the load factor at or below 0.5
+        final int capacity = Integer.highestOneBit(Math.max(1, persons) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.slotPersonIds = new int[capacity];
+        this.slotOffsets = new int[capacity];
+        this.slotCounts = new int[capacity];
+
+        int offset = 0;
+        while (offset < this.memberships.length) {
+            final int personId = this.memberships[offset].getPersonId();
+            int end = offset + 1;
+            while (end < this.memberships.length && this.memberships[end].getPersonId() == personId) {
+                end++;
+            }
+
+            int slot = hash(personId) & mask;
+            while (slotCounts[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slotPersonIds[slot] = personId;
+            slotOffsets[slot] = offset;
+            slotCounts[slot] = end - offset;
+            offset = end;
+        }
+    }
+
+    public boolean isActive(final int personId) {
+        return isActiveAt(personId, System.currentTimeMillis() / 1000);
+    }
+
+    public boolean isInactive(final int personId) {
+        return !isActive(personId);
+    }
+
+    public boolean isActiveAt(final int personId, final long epochSecond) {
+        final int slot = findSlot(personId);
+        if (slot < 0) {
+            return false;
+        }
+
+        final int end = slotOffsets[slot] + slotCounts[slot];
+        for (int i = slotOffsets[slot]; i < end; i++) {
+            // Check if membership is active at the given time
+            if (epochSecond > entrySeconds[i] && epochSecond < exitSeconds[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(final int personId) {
+        return findSlot(personId) >= 0;
+    }
+
+    public ProcuratGroupMembership getMembership(final int personId) {
+        final int slot = findSlot(personId);
+        return slot < 0 ? null : memberships[slotOffsets[slot]];
+    }
+
+    public int getPersonCount() {
+        return personCount;
+    }
+
+    private int findSlot(final int personId) {
+        int slot = hash(personId) & mask;
+        while (slotCounts[slot] != 0) {
+            if (slotPersonIds[slot] == personId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(final int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,86 @@
+package de.waldorfaugsburg.psync.client.procurat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import de.waldorfaugsburg.psync.client.HttpClientException;
+import de.waldorfaugsburg.psync.config.ApplicationConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Memoizes Procurat lookups for the lifetime of a {@link ProcuratClient} (i.e. a single task run).
+ * Entries are kept per endpoint and id, bounded in size and evicted after a configurable duration.
+ **/
+@Slf4j
+public final class ProcuratCache {
+
+    private final long maximumSize;
+    private final Duration expireAfterWrite;
+    private final Map<String, Cache<Integer, Object>> caches = new ConcurrentHashMap<>();
+
+    ProcuratCache(final ApplicationConfiguration.CacheConfiguration configuration) {
+        this.maximumSize = configuration.getMaximumSize();
+        this.expireAfterWrite = Duration.ofSeconds(configuration.getExpireAfterWriteSeconds());
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T get(final String endpoint, final int id, final Loader<T> loader) throws HttpClientException {
+        final Cache<Integer, Object> cache = caches.computeIfAbsent(endpoint, e -> createCache());
+
+        T value = (T) cache.getIfPresent(id);
+        if (value == null) {
+            value = loader.load();
+
+            // Don't cache empty responses
+            if (value != null) {
+                cache.put(id, value);
+            }
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> getAsync(final String endpoint, final int id, final Supplier<CompletableFuture<T>> loader) {
+        final Cache<Integer, Object> cache = caches.computeIfAbsent(endpoint, e -> createCache());
+
+        final T value = (T) cache.getIfPresent(id);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+
+        return loader.get().thenApply(result -> {
+            // Don't cache empty responses
+            if (result != null) {
+                cache.put(id, result);
+            }
+            return result;
+        });
+    }
+
+    void logStatistics() {
+        caches.forEach((endpoint, cache) -> {
+            final CacheStats stats = cache.stats();
+            log.info("Cache '{}': {} hits, {} misses, {} evictions (hit rate: {}%)", endpoint,
+                    stats.hitCount(), stats.missCount(), stats.evictionCount(), Math.round(stats.hitRate() * 100));
+        });
+    }
+
+    private Cache<Integer, Object> createCache() {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+    }
+
+    @FunctionalInterface
+    interface Loader<T> {
+        T load() throws HttpClientException;
+    }
+}
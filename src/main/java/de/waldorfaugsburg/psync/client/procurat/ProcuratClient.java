@@ -1,32 +1,56 @@
 package de.waldorfaugsburg.psync.client.procurat;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
 import de.waldorfaugsburg.psync.ProcuratSyncApplication;
 import de.waldorfaugsburg.psync.client.AbstractHttpClient;
+import de.waldorfaugsburg.psync.client.HttpCacheStatistics;
 import de.waldorfaugsburg.psync.client.HttpClientException;
+import de.waldorfaugsburg.psync.client.procurat.adapter.ProcuratGroupMembershipAdapter;
+import de.waldorfaugsburg.psync.client.procurat.adapter.ProcuratTypeAdapterFactory;
 import de.waldorfaugsburg.psync.client.procurat.model.*;
 import de.waldorfaugsburg.psync.client.procurat.service.*;
+import de.waldorfaugsburg.psync.config.ApplicationConfiguration;
 import lombok.Getter;
+import okhttp3.Cache;
 import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public final class ProcuratClient extends AbstractHttpClient {
 
     private static final Duration TIMEOUT_DURATION = Duration.ofMinutes(5);
-    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssX");
 
-    private final String url;
     private final String apiKey;
     private final int rootGroupId;
     private final Map<String, Integer> namedGroups;
+    private final ProcuratCache cache;
+    private final ApplicationConfiguration.HttpCacheConfiguration httpCacheConfiguration;
+    private final List<String> udfKeys = new ArrayList<>();
+
+    private Cache httpCache;
+    private HttpCacheStatistics httpCacheStatistics;
+
+    private Map<Integer, String> namedGroupIndex;
 
     @Getter
     private ProcuratPersonService personService;
+    private ProcuratPersonService streamingPersonService;
     @Getter
     private ProcuratGroupService groupService;
     @Getter
@@ -37,10 +61,20 @@ public final class ProcuratClient extends AbstractHttpClient {
     private ProcuratCommunicationService communicationService;
 
     ProcuratClient(final ProcuratSyncApplication application) {
-        this.url = application.getConfiguration().getClients().getProcurat().getUrl();
+        super(application.getHttpClientRegistry(), application.getConfiguration().getClients().getProcurat().getUrl());
         this.apiKey = application.getConfiguration().getClients().getProcurat().getApiKey();
         this.rootGroupId = application.getConfiguration().getClients().getProcurat().getRootGroupId();
         this.namedGroups = application.getConfiguration().getClients().getProcurat().getNamedGroups();
+        this.cache = new ProcuratCache(application.getConfiguration().getClients().getProcurat().getCache());
+        this.httpCacheConfiguration = application.getConfiguration().getClients().getProcurat().getHttpCache();
+
+        // Only UDFs that are actually read are kept in memory
+        final ApplicationConfiguration.ActiveDirectoryConfiguration activeDirectory = application.getConfiguration().getClients().getActiveDirectory();
+        if (activeDirectory != null) {
+            Stream.of(activeDirectory.getUsernameUDF(), activeDirectory.getNoSyncUDF(), activeDirectory.getNoUpnUDF())
+                    .filter(Objects::nonNull)
+                    .forEach(udfKeys::add);
+        }
     }
 
     public static ProcuratClient createInstance(final ProcuratSyncApplication application) throws HttpClientException {
@@ -54,86 +88,211 @@ public final class ProcuratClient extends AbstractHttpClient {
         super.setup();
 
         this.personService = getRetrofit().create(ProcuratPersonService.class);
+        // Streamed bodies stay open while the caller works through them, so the call timeout must not cover them
+        final OkHttpClient streamingClient = ((OkHttpClient) getRetrofit().callFactory()).newBuilder().callTimeout(Duration.ZERO).build();
+        this.streamingPersonService = getRetrofit().newBuilder().client(streamingClient).build().create(ProcuratPersonService.class);
         this.groupService = getRetrofit().create(ProcuratGroupService.class);
         this.contactInformationService = getRetrofit().create(ProcuratContactInformationService.class);
         this.addressService = getRetrofit().create(ProcuratAddressService.class);
         this.communicationService = getRetrofit().create(ProcuratCommunicationService.class);
     }
 
+    @Override
+    protected Gson createGson() {
+        return GSON.newBuilder()
+                .registerTypeAdapterFactory(new ProcuratTypeAdapterFactory())
+                .registerTypeAdapter(ProcuratGroupMembership.class, new ProcuratGroupMembershipAdapter(udfKeys))
+                .create();
+    }
+
     @Override
     protected OkHttpClient createClient(final OkHttpClient.Builder clientBuilder) {
         clientBuilder.addInterceptor(chain -> chain.proceed(chain.request().newBuilder().addHeader("X-API-KEY", apiKey).build()));
         clientBuilder.callTimeout(TIMEOUT_DURATION).connectTimeout(TIMEOUT_DURATION).readTimeout(TIMEOUT_DURATION).writeTimeout(TIMEOUT_DURATION);
+
+        // Optional on-disk response cache
+        if (httpCacheConfiguration != null && httpCacheConfiguration.getDirectory() != null) {
+            httpCache = new Cache(new File(httpCacheConfiguration.getDirectory()), httpCacheConfiguration.getMaximumSizeBytes());
+            httpCacheStatistics = new HttpCacheStatistics();
+            clientBuilder.cache(httpCache);
+            clientBuilder.addInterceptor(httpCacheStatistics);
+            clientBuilder.addNetworkInterceptor(chain -> {
+                final Response response = chain.proceed(chain.request());
+                // Responses without any caching headers are considered fresh for the configured window
+                if (chain.request().method().equals("GET") && response.isSuccessful()
+                        && response.header("Cache-Control") == null && response.header("Expires") == null
+                        && response.header("ETag") == null && response.header("Last-Modified") == null) {
+                    return response.newBuilder()
+                            .header("Cache-Control", "max-age=" + httpCacheConfiguration.getFreshnessSeconds())
+                            .build();
+                }
+                return response;
+            });
+        }
         return clientBuilder.build();
     }
 
     @Override
     protected Retrofit createRetrofit(final Retrofit.Builder retrofitBuilder) {
-        retrofitBuilder.baseUrl(this.url);
+        retrofitBuilder.baseUrl(getUrl());
         return retrofitBuilder.build();
     }
 
     public ProcuratPerson getPersonById(final int personId) throws HttpClientException {
-        return execute(personService.findById(personId));
+        return cache.get("persons", personId, () -> execute(personService.findById(personId)));
+    }
+
+    public CompletableFuture<ProcuratPerson> getPersonByIdAsync(final int personId) {
+        return cache.getAsync("persons", personId, () -> executeAsync(personService.findById(personId)));
     }
 
     public List<ProcuratPerson> getAllPersons() throws HttpClientException {
         return execute(personService.findAll());
     }
 
+    /**
+     * Streams all persons while they are being downloaded instead of materializing the whole list.
+     * The returned stream holds the HTTP response open and has to be closed by the caller.
+     **/
+    public Stream<ProcuratPerson> streamAllPersons() throws HttpClientException {
+        final ResponseBody body = execute(streamingPersonService.streamAll());
+        final JsonReader reader = new JsonReader(body.charStream());
+        try {
+            reader.beginArray();
+        } catch (final IOException e) {
+            body.close();
+            throw new HttpClientException(e);
+        }
+
+        final TypeAdapter<ProcuratPerson> adapter = getGson().getAdapter(ProcuratPerson.class);
+        final Iterator<ProcuratPerson> iterator = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return reader.hasNext();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public ProcuratPerson next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                try {
+                    return adapter.read(reader);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(body::close);
+    }
+
     public List<ProcuratPerson> getPersonsByFamilyId(final int familyId) throws HttpClientException {
-        return execute(personService.findByFamilyId(familyId));
+        return cache.get("persons/family", familyId, () -> execute(personService.findByFamilyId(familyId)));
+    }
+
+    public CompletableFuture<List<ProcuratPerson>> getPersonsByFamilyIdAsync(final int familyId) {
+        return cache.getAsync("persons/family", familyId, () -> executeAsync(personService.findByFamilyId(familyId)));
     }
 
     public List<ProcuratGroupMembership> getGroupMemberships(final int groupId) throws HttpClientException {
-        return execute(groupService.findMembers(groupId));
+        return cache.get("groups/members", groupId, () -> execute(groupService.findMembers(groupId)));
+    }
+
+    public CompletableFuture<List<ProcuratGroupMembership>> getGroupMembershipsAsync(final int groupId) {
+        return cache.getAsync("groups/members", groupId, () -> executeAsync(groupService.findMembers(groupId)));
     }
 
     public List<ProcuratGroupMembership> getRootGroupMemberships() throws HttpClientException {
         return getGroupMemberships(rootGroupId);
     }
 
-    public boolean isPersonInactive(final List<ProcuratGroupMembership> memberships, final int personId) {
-        for (final ProcuratGroupMembership membership : memberships) {
-            if (membership.getPersonId() == personId) {
-                final LocalDateTime now = LocalDateTime.now();
-                final LocalDateTime entryDate = LocalDateTime.parse(membership.getEntryDate(), FORMATTER);
-                final LocalDateTime exitDate = membership.getExitDate() == null ? null : LocalDateTime.parse(membership.getExitDate(), FORMATTER);
-
-                // Check if membership is still active
-                if (now.isAfter(entryDate) && (exitDate == null || now.isBefore(exitDate))) {
-                    return false;
-                }
-            }
-        }
-        return true;
+    public MembershipIndex getRootMembershipIndex() throws HttpClientException {
+        return new MembershipIndex(getRootGroupMemberships());
     }
 
     public String getNamedGroupName(final int personId) throws HttpClientException {
-        for (final String name : namedGroups.keySet()) {
-            final Integer groupId = namedGroups.get(name);
-            for (final ProcuratGroupMembership membership : getGroupMemberships(groupId)) {
-                if (membership.getPersonId() == personId) {
-                    return name;
+        return getNamedGroupIndex().get(personId);
+    }
+
+    private synchronized Map<Integer, String> getNamedGroupIndex() throws HttpClientException {
+        if (namedGroupIndex != null) {
+            return namedGroupIndex;
+        }
+
+        final Map<Integer, String> index = new HashMap<>();
+        if (namedGroups != null) {
+            // Fetch memberships of all named groups at once
+            final Map<String, Future<List<ProcuratGroupMembership>>> futures = new LinkedHashMap<>();
+            try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                namedGroups.forEach((name, groupId) -> futures.put(name, executor.submit(() -> getGroupMemberships(groupId))));
+
+                // The first configured group wins if a person is member of several named groups
+                for (final Map.Entry<String, Future<List<ProcuratGroupMembership>>> entry : futures.entrySet()) {
+                    for (final ProcuratGroupMembership membership : entry.getValue().get()) {
+                        index.putIfAbsent(membership.getPersonId(), entry.getKey());
+                    }
+                }
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof final HttpClientException cause) {
+                    throw cause;
                 }
+                throw new HttpClientException(e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HttpClientException(e);
             }
         }
-        return null;
+
+        namedGroupIndex = index;
+        return index;
     }
 
     public List<ProcuratContactInformation> getContactInformationByPersonId(final int personId) throws HttpClientException {
-        return execute(contactInformationService.findByPersonId(personId));
+        return cache.get("contactinformation/person", personId, () -> execute(contactInformationService.findByPersonId(personId)));
+    }
+
+    public CompletableFuture<List<ProcuratContactInformation>> getContactInformationByPersonIdAsync(final int personId) {
+        return cache.getAsync("contactinformation/person", personId, () -> executeAsync(contactInformationService.findByPersonId(personId)));
     }
 
     public List<ProcuratContactInformation> getContactInformationByAddressId(final int addressId) throws HttpClientException {
-        return execute(contactInformationService.findByAddressId(addressId));
+        return cache.get("contactinformation/address", addressId, () -> execute(contactInformationService.findByAddressId(addressId)));
+    }
+
+    public CompletableFuture<List<ProcuratContactInformation>> getContactInformationByAddressIdAsync(final int addressId) {
+        return cache.getAsync("contactinformation/address", addressId, () -> executeAsync(contactInformationService.findByAddressId(addressId)));
     }
 
     public ProcuratAddress getAddressById(final int addressId) throws HttpClientException {
-        return execute(addressService.findById(addressId));
+        return cache.get("addresses", addressId, () -> execute(addressService.findById(addressId)));
+    }
+
+    public CompletableFuture<ProcuratAddress> getAddressByIdAsync(final int addressId) {
+        return cache.getAsync("addresses", addressId, () -> executeAsync(addressService.findById(addressId)));
     }
 
     public List<ProcuratCommunication> getCommunicationsByPersonId(final int personId) throws HttpClientException {
-        return execute(communicationService.findByPersonId(personId));
+        return cache.get("communication/person", personId, () -> execute(communicationService.findByPersonId(personId)));
+    }
+
+    public CompletableFuture<List<ProcuratCommunication>> getCommunicationsByPersonIdAsync(final int personId) {
+        return cache.getAsync("communication/person", personId, () -> executeAsync(communicationService.findByPersonId(personId)));
+    }
+
+    @Override
+    public void close() throws Exception {
+        cache.logStatistics();
+        if (httpCache != null) {
+            httpCacheStatistics.logStatistics();
+            httpCache.close();
+        }
+        super.close();
     }
 }
@@ -0,0 +1,160 @@
+package de.waldorfaugsburg.psync.client.procurat.adapter;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import de.waldorfaugsburg.psync.client.procurat.model.ProcuratGroupMembership;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+
+/**
+ * Parses memberships into their compact form: dates become epoch seconds and of the UDF tree in
+ * "jsonData" only the configured keys are retained (as strings).
+ **/
+public final class ProcuratGroupMembershipAdapter extends TypeAdapter<ProcuratGroupMembership> {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssX");
+
+    private final String[] udfKeys;
+
+    public ProcuratGroupMembershipAdapter(final Collection<String> udfKeys) {
+        this.udfKeys = udfKeys.toArray(new String[0]);
+    }
+
+    @Override
+    public ProcuratGroupMembership read(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        final ProcuratGroupMembership membership = new ProcuratGroupMembership();
+        membership.setEntryDate(ProcuratGroupMembership.NO_ENTRY_DATE);
+        membership.setExitDate(ProcuratGroupMembership.NO_EXIT_DATE);
+        membership.setUdfKeys(udfKeys);
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "id" -> membership.setId(in.nextInt());
+                case "groupId" -> membership.setGroupId(in.nextInt());
+                case "personId" -> membership.setPersonId(in.nextInt());
+                case "entryDate" -> membership.setEntryDate(readDate(in, ProcuratGroupMembership.NO_ENTRY_DATE));
+                case "exitDate" -> membership.setExitDate(readDate(in, ProcuratGroupMembership.NO_EXIT_DATE));
+                case "grade" -> membership.setGrade(readString(in));
+                case "jsonData" -> membership.setUdfValues(readUdfValues(in));
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        return membership;
+    }
+
+    @Override
+    public void write(final JsonWriter out, final ProcuratGroupMembership membership) throws IOException {
+        if (membership == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        out.name("id").value(membership.getId());
+        out.name("groupId").value(membership.getGroupId());
+        out.name("personId").value(membership.getPersonId());
+        out.name("entryDate").value(formatDate(membership.getEntryDate(), ProcuratGroupMembership.NO_ENTRY_DATE));
+        out.name("exitDate").value(formatDate(membership.getExitDate(), ProcuratGroupMembership.NO_EXIT_DATE));
+        out.name("grade").value(membership.getGrade());
+        if (membership.getUdfValues() != null) {
+            // Only retained UDFs can be written back
+            out.name("jsonData").beginObject();
+            for (int i = 0; i < membership.getUdfKeys().length; i++) {
+                out.name(membership.getUdfKeys()[i]).value(membership.getUdfValues()[i]);
+            }
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private String[] readUdfValues(final JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+
+        String[] values = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            final int index = indexOf(in.nextName());
+            if (index < 0) {
+                in.skipValue();
+                continue;
+            }
+
+            final String value = switch (in.peek()) {
+                case STRING, NUMBER -> in.nextString();
+                case BOOLEAN -> String.valueOf(in.nextBoolean());
+                case NULL -> {
+                    in.nextNull();
+                    yield null;
+                }
+                default -> {
+                    in.skipValue();
+                    yield null;
+                }
+            };
+
+            if (values == null) {
+                values = new String[udfKeys.length];
+            }
+            values[index] = value;
+        }
+        in.endObject();
+        return values;
+    }
+
+    private int indexOf(final String key) {
+        for (int i = 0; i < udfKeys.length; i++) {
+            if (udfKeys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String readString(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static long readDate(final JsonReader in, final long defaultValue) throws IOException {
+        final String date = readString(in);
+        if (date == null) {
+            return defaultValue;
+        }
+
+        try {
+            // Dates are interpreted in local time
+            return LocalDateTime.parse(date, FORMATTER).atZone(ZoneId.systemDefault()).toEpochSecond();
+        } catch (final DateTimeParseException e) {
+            throw new JsonSyntaxException("invalid date " + date + " at " + in.getPath(), e);
+        }
+    }
+
+    private static String formatDate(final long epochSecond, final long defaultValue) {
+        if (epochSecond == defaultValue) {
+            return null;
+        }
+        return FORMATTER.format(Instant.ofEpochSecond(epochSecond).atZone(ZoneId.systemDefault()).toOffsetDateTime());
+    }
+}
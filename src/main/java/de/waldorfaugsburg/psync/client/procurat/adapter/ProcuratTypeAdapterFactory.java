@@ -0,0 +1,298 @@
+package de.waldorfaugsburg.psync.client.procurat.adapter;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import de.waldorfaugsburg.psync.client.ModelTypeAdapter;
+import de.waldorfaugsburg.psync.client.procurat.model.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hand-written type adapters of the Procurat models, replacing Gson's reflective deserialization
+ **/
+public final class ProcuratTypeAdapterFactory implements TypeAdapterFactory {
+
+    private final Map<Class<?>, TypeAdapter<?>> adapters = new HashMap<>();
+
+    public ProcuratTypeAdapterFactory() {
+        adapters.put(ProcuratAddress.class, new AddressAdapter());
+        adapters.put(ProcuratCommunication.class, new CommunicationAdapter());
+        adapters.put(ProcuratContactInformation.class, new ContactInformationAdapter());
+        adapters.put(ProcuratGroup.class, new GroupAdapter());
+        adapters.put(ProcuratPerson.class, new PersonAdapter());
+        adapters.put(ProcuratUDF.class, new UDFAdapter());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+        return (TypeAdapter<T>) adapters.get(type.getRawType());
+    }
+
+    private static final class AddressAdapter extends ModelTypeAdapter<ProcuratAddress> {
+
+        @Override
+        protected ProcuratAddress create() {
+            return new ProcuratAddress();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final ProcuratAddress model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(in.nextInt());
+                case "street" -> model.setStreet(readString(in));
+                case "countryId" -> model.setCountryId(in.nextInt());
+                case "zip" -> model.setZip(readString(in));
+                case "city" -> model.setCity(readString(in));
+                case "nameline2" -> model.setNameline2(readString(in));
+                case "additional" -> model.setAdditional(readString(in));
+                case "district" -> model.setDistrict(readString(in));
+                case "poBoxZip" -> model.setPoBoxZip(readString(in));
+                case "poBox" -> model.setPoBox(readString(in));
+                case "countyId" -> model.setCountyId(in.nextInt());
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final ProcuratAddress model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("street").value(model.getStreet());
+            out.name("countryId").value(model.getCountryId());
+            out.name("zip").value(model.getZip());
+            out.name("city").value(model.getCity());
+            out.name("nameline2").value(model.getNameline2());
+            out.name("additional").value(model.getAdditional());
+            out.name("district").value(model.getDistrict());
+            out.name("poBoxZip").value(model.getPoBoxZip());
+            out.name("poBox").value(model.getPoBox());
+            out.name("countyId").value(model.getCountyId());
+        }
+    }
+
+    private static final class CommunicationAdapter extends ModelTypeAdapter<ProcuratCommunication> {
+
+        @Override
+        protected ProcuratCommunication create() {
+            return new ProcuratCommunication();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final ProcuratCommunication model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(in.nextInt());
+                case "personId" -> model.setPersonId(in.nextInt());
+                case "contactPersonId" -> model.setContactPersonId(in.nextInt());
+                case "isEmergency" -> model.setEmergency(readBoolean(in));
+                case "includeAddressOnList" -> model.setIncludeAddressOnList(readBoolean(in));
+                case "includeHomePhoneOnList" -> model.setIncludeHomePhoneOnList(readBoolean(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final ProcuratCommunication model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("personId").value(model.getPersonId());
+            out.name("contactPersonId").value(model.getContactPersonId());
+            out.name("isEmergency").value(model.isEmergency());
+            out.name("includeAddressOnList").value(model.isIncludeAddressOnList());
+            out.name("includeHomePhoneOnList").value(model.isIncludeHomePhoneOnList());
+        }
+    }
+
+    private static final class ContactInformationAdapter extends ModelTypeAdapter<ProcuratContactInformation> {
+
+        @Override
+        protected ProcuratContactInformation create() {
+            return new ProcuratContactInformation();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final ProcuratContactInformation model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(in.nextInt());
+                case "order" -> model.setOrder(in.nextInt());
+                case "type" -> model.setType(readString(in));
+                case "medium" -> model.setMedium(readString(in));
+                case "personId" -> model.setPersonId(in.nextInt());
+                case "addressId" -> model.setAddressId(in.nextInt());
+                case "externalName" -> model.setExternalName(readString(in));
+                case "content" -> model.setContent(readString(in));
+                case "comment" -> model.setComment(readString(in));
+                case "secret" -> model.setSecret(readBoolean(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final ProcuratContactInformation model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("order").value(model.getOrder());
+            out.name("type").value(model.getType());
+            out.name("medium").value(model.getMedium());
+            out.name("personId").value(model.getPersonId());
+            out.name("addressId").value(model.getAddressId());
+            out.name("externalName").value(model.getExternalName());
+            out.name("content").value(model.getContent());
+            out.name("comment").value(model.getComment());
+            out.name("secret").value(model.isSecret());
+        }
+    }
+
+    private static final class GroupAdapter extends ModelTypeAdapter<ProcuratGroup> {
+
+        @Override
+        protected ProcuratGroup create() {
+            return new ProcuratGroup();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final ProcuratGroup model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(in.nextInt());
+                case "parentGroupId" -> model.setParentGroupId(in.nextInt());
+                case "name" -> model.setName(readString(in));
+                case "shortName" -> model.setShortName(readString(in));
+                case "type" -> model.setType(readString(in));
+                case "grades" -> model.setGrades(readList(in, STRING_ADAPTER));
+                case "schoolYear" -> model.setSchoolYear(readString(in));
+                case "additionalType" -> model.setAdditionalType(readString(in));
+                case "sortKey" -> model.setSortKey(in.nextInt());
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final ProcuratGroup model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("parentGroupId").value(model.getParentGroupId());
+            out.name("name").value(model.getName());
+            out.name("shortName").value(model.getShortName());
+            out.name("type").value(model.getType());
+            out.name("grades");
+            writeList(out, model.getGrades(), STRING_ADAPTER);
+            out.name("schoolYear").value(model.getSchoolYear());
+            out.name("additionalType").value(model.getAdditionalType());
+            out.name("sortKey").value(model.getSortKey());
+        }
+    }
+
+    private static final class PersonAdapter extends ModelTypeAdapter<ProcuratPerson> {
+
+        @Override
+        protected ProcuratPerson create() {
+            return new ProcuratPerson();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final ProcuratPerson model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(in.nextInt());
+                case "firstName" -> model.setFirstName(readString(in));
+                case "lastName" -> model.setLastName(readString(in));
+                case "gender" -> model.setGender(readString(in));
+                case "addressId" -> model.setAddressId(in.nextInt());
+                case "familyId" -> model.setFamilyId(in.nextInt());
+                case "familyRole" -> model.setFamilyRole(readString(in));
+                case "birthDate" -> model.setBirthDate(readString(in));
+                case "birthPlace" -> model.setBirthPlace(readString(in));
+                case "birthCountryId" -> model.setBirthCountryId(in.nextInt());
+                case "languageId" -> model.setLanguageId(in.nextInt());
+                case "religionId" -> model.setReligionId(in.nextInt());
+                case "allFirstNames" -> model.setAllFirstNames(readString(in));
+                case "email" -> model.setEmail(readString(in));
+                case "birthName" -> model.setBirthName(readString(in));
+                case "academicTitle" -> model.setAcademicTitle(readString(in));
+                case "namePrefix" -> model.setNamePrefix(readString(in));
+                case "nobilityTitle" -> model.setNobilityTitle(readString(in));
+                case "salutationA" -> model.setSalutationA(readString(in));
+                case "salutationB" -> model.setSalutationB(readString(in));
+                case "jobTitle" -> model.setJobTitle(readString(in));
+                case "comment" -> model.setComment(readString(in));
+                case "nationalityId" -> model.setNationalityId(in.nextInt());
+                case "maritalStatus" -> model.setMaritalStatus(readString(in));
+                case "deathDate" -> model.setDeathDate(readString(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final ProcuratPerson model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("firstName").value(model.getFirstName());
+            out.name("lastName").value(model.getLastName());
+            out.name("gender").value(model.getGender());
+            out.name("addressId").value(model.getAddressId());
+            out.name("familyId").value(model.getFamilyId());
+            out.name("familyRole").value(model.getFamilyRole());
+            out.name("birthDate").value(model.getBirthDate());
+            out.name("birthPlace").value(model.getBirthPlace());
+            out.name("birthCountryId").value(model.getBirthCountryId());
+            out.name("languageId").value(model.getLanguageId());
+            out.name("religionId").value(model.getReligionId());
+            out.name("allFirstNames").value(model.getAllFirstNames());
+            out.name("email").value(model.getEmail());
+            out.name("birthName").value(model.getBirthName());
+            out.name("academicTitle").value(model.getAcademicTitle());
+            out.name("namePrefix").value(model.getNamePrefix());
+            out.name("nobilityTitle").value(model.getNobilityTitle());
+            out.name("salutationA").value(model.getSalutationA());
+            out.name("salutationB").value(model.getSalutationB());
+            out.name("jobTitle").value(model.getJobTitle());
+            out.name("comment").value(model.getComment());
+            out.name("nationalityId").value(model.getNationalityId());
+            out.name("maritalStatus").value(model.getMaritalStatus());
+            out.name("deathDate").value(model.getDeathDate());
+        }
+    }
+
+    private static final class UDFAdapter extends ModelTypeAdapter<ProcuratUDF> {
+
+        @Override
+        protected ProcuratUDF create() {
+            return new ProcuratUDF();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final ProcuratUDF model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(in.nextInt());
+                case "groupId" -> model.setGroupId(in.nextInt());
+                case "groupType" -> model.setGroupType(readString(in));
+                case "groupBaseType" -> model.setGroupBaseType(readString(in));
+                case "name" -> model.setName(readString(in));
+                case "fieldType" -> model.setFieldType(readString(in));
+                case "usage" -> model.setUsage(readString(in));
+                case "learning" -> model.setLearning(readBoolean(in));
+                case "referenceTable" -> model.setReferenceTable(readString(in));
+                case "description" -> model.setDescription(readString(in));
+                case "active" -> model.setActive(readBoolean(in));
+                case "sortIndex" -> model.setSortIndex(in.nextInt());
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final ProcuratUDF model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("groupId").value(model.getGroupId());
+            out.name("groupType").value(model.getGroupType());
+            out.name("groupBaseType").value(model.getGroupBaseType());
+            out.name("name").value(model.getName());
+            out.name("fieldType").value(model.getFieldType());
+            out.name("usage").value(model.getUsage());
+            out.name("learning").value(model.isLearning());
+            out.name("referenceTable").value(model.getReferenceTable());
+            out.name("description").value(model.getDescription());
+            out.name("active").value(model.isActive());
+            out.name("sortIndex").value(model.getSortIndex());
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package de.waldorfaugsburg.psync.client.procurat.model;
 
-import com.google.gson.JsonObject;
 import lombok.*;
 
-import java.util.List;
-
 @NoArgsConstructor
 @AllArgsConstructor
 @Data
@@ -12,12 +9,31 @@ import java.util.List;
 @ToString
 public final class ProcuratGroupMembership {
 
+    public static final long NO_ENTRY_DATE = Long.MIN_VALUE;
+    public static final long NO_EXIT_DATE = Long.MAX_VALUE;
+
     private int id;
     private int groupId;
     private int personId;
-    private String entryDate;
-    private String exitDate;
-    private JsonObject jsonData;
+    // Epoch seconds
+    private long entryDate;
+    private long exitDate;
     private String grade;
+    // Retained UDFs of jsonData; the key array is shared between all memberships
+    private String[] udfKeys;
+    private String[] udfValues;
+
+    public String getUdf(final String key) {
+        if (udfValues == null) {
+            return null;
+        }
+
+        for (int i = 0; i < udfKeys.length; i++) {
+            if (udfKeys[i].equals(key)) {
+                return udfValues[i];
+            }
+        }
+        return null;
+    }
 
 }
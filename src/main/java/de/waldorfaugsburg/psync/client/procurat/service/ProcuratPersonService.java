@@ -1,6 +1,7 @@
 package de.waldorfaugsburg.psync.client.procurat.service;
 
 import de.waldorfaugsburg.psync.client.procurat.model.ProcuratPerson;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.*;
 
@@ -17,6 +18,10 @@ public interface ProcuratPersonService {
     @GET("persons")
     Call<List<ProcuratPerson>> findAll();
 
+    @Streaming
+    @GET("persons")
+    Call<ResponseBody> streamAll();
+
     @PUT("persons/{personId}")
     Call<Void> update(@Path("personId") int personId, @Body ProcuratPerson person);
 
@@ -1,20 +1,26 @@
 package de.waldorfaugsburg.psync.client.starface;
 
+import com.google.gson.Gson;
 import de.waldorfaugsburg.psync.ProcuratSyncApplication;
 import de.waldorfaugsburg.psync.client.AbstractHttpClient;
 import de.waldorfaugsburg.psync.client.HttpClientException;
+import de.waldorfaugsburg.psync.client.starface.adapter.StarfaceTypeAdapterFactory;
+import de.waldorfaugsburg.psync.client.starface.exception.StarfaceDeleteException;
 import de.waldorfaugsburg.psync.client.starface.exception.StarfaceLoginException;
 import de.waldorfaugsburg.psync.client.starface.model.*;
 import de.waldorfaugsburg.psync.client.starface.service.StarfaceService;
+import de.waldorfaugsburg.psync.state.Fingerprint;
 import lombok.extern.slf4j.Slf4j;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
+import okhttp3.*;
 import org.apache.commons.codec.digest.DigestUtils;
 import retrofit2.Retrofit;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * STARFACE REST Client implementation as per official documentation
@@ -27,73 +33,88 @@ public final class StarfaceClient extends AbstractHttpClient {
     // STARFACE can't display more than 4 phone numbers per contact
     private static final int MAX_NUMBERS_PER_CONTACT = 4;
 
-    // Documentation states 4 hours validity for a token - but just in case
+    // Documentation states 4 hours validity for a token - refresh before
     private static final long TOKEN_MAX_VALIDITY_MILLIS = TimeUnit.HOURS.toMillis(3);
 
-    private final String url;
+    // Block identifying the Procurat person a contact was created from
+    private static final String PROCURAT_BLOCK = "procurat";
+    private static final String PROCURAT_ID_ATTRIBUTE = "id";
+    private static final String PROCURAT_FINGERPRINT_ATTRIBUTE = "fingerprint";
+    private static final String PROCURAT_ID_KEY = PROCURAT_BLOCK + "." + PROCURAT_ID_ATTRIBUTE;
+    private static final String PROCURAT_FINGERPRINT_KEY = PROCURAT_BLOCK + "." + PROCURAT_FINGERPRINT_ATTRIBUTE;
+    // Attributes the contact search returns in the summaries, so contacts don't have to be fetched for the diff
+    private static final String SUMMARY_FIELDS = PROCURAT_ID_KEY + "," + PROCURAT_FINGERPRINT_KEY;
+
     private final String userId;
     private final String password;
     private final String tagName;
+    private final int pageSize;
+    private final int deleteParallelism;
+    private final Lock loginLock = new ReentrantLock();
 
     private StarfaceService service;
-    private String authToken;
+    private volatile String authToken;
     private StarfaceContactTag tag;
 
-    private long loginMillis;
+    private volatile long loginMillis;
 
     StarfaceClient(final ProcuratSyncApplication application) {
-        this.url = application.getConfiguration().getClients().getStarface().getUrl();
+        super(application.getHttpClientRegistry(), application.getConfiguration().getClients().getStarface().getUrl());
         this.userId = application.getConfiguration().getClients().getStarface().getUserId();
         this.password = application.getConfiguration().getClients().getStarface().getPassword();
         this.tagName = application.getConfiguration().getClients().getStarface().getTag();
+        this.pageSize = application.getConfiguration().getClients().getStarface().getPageSize();
+        this.deleteParallelism = application.getConfiguration().getClients().getStarface().getDeleteParallelism();
     }
 
-    public static StarfaceClient createInstance(final ProcuratSyncApplication application) throws StarfaceLoginException, HttpClientException {
+    public static StarfaceClient createInstance(final ProcuratSyncApplication application) throws HttpClientException {
         final StarfaceClient client = new StarfaceClient(application);
         client.setup();
         return client;
     }
 
     @Override
-    protected void setup() throws StarfaceLoginException, HttpClientException {
+    protected void setup() throws HttpClientException {
         super.setup();
 
         // Load service
         service = getRetrofit().create(StarfaceService.class);
 
-        // Authenticate
-        login();
-
-        // Find default tag
+        // Find default tag (logs in on first use)
         tag = findTagByAlias(tagName);
     }
 
+    @Override
+    protected Gson createGson() {
+        return GSON.newBuilder()
+                .registerTypeAdapterFactory(new StarfaceTypeAdapterFactory())
+                .create();
+    }
+
     @Override
     protected OkHttpClient createClient(final OkHttpClient.Builder clientBuilder) {
         clientBuilder.addInterceptor(chain -> {
             final Request.Builder builder = chain.request().newBuilder();
-            if (authToken != null) {
-                builder.addHeader("authToken", authToken);
-            }
             builder.addHeader("Content-Type", "application/json");
             builder.addHeader("Accept", "application/json");
             builder.addHeader("X-Version", "2");
             return chain.proceed(builder.build());
         });
+
+        // Attach the token to every request and refresh it once it's rejected
+        final TokenAuthenticator authenticator = new TokenAuthenticator();
+        clientBuilder.addInterceptor(authenticator);
+        clientBuilder.authenticator(authenticator);
         return clientBuilder.build();
     }
 
     @Override
     protected Retrofit createRetrofit(final Retrofit.Builder retrofitBuilder) {
-        retrofitBuilder.baseUrl(this.url);
+        retrofitBuilder.baseUrl(getUrl());
         return retrofitBuilder.build();
     }
 
-    public StarfaceContactTag findTagByAlias(final String alias) throws HttpClientException, StarfaceLoginException {
-        if (isTokenInvalid()) {
-            login();
-        }
-
+    public StarfaceContactTag findTagByAlias(final String alias) throws HttpClientException {
         final List<StarfaceContactTag> tags = execute(service.findAllTags());
         for (final StarfaceContactTag tag : tags) {
             if (tag.getAlias().equals(alias)) return tag;
@@ -101,12 +122,61 @@ public final class StarfaceClient extends AbstractHttpClient {
         return null;
     }
 
-    public void createContact(final String firstName, final String lastName, final String homePhoneNumber,
-                              final List<String> phoneNumbers) throws HttpClientException, StarfaceLoginException {
-        if (isTokenInvalid()) {
-            login();
+    public void createContact(final int personId, final String firstName, final String lastName, final String homePhoneNumber,
+                              final List<String> phoneNumbers) throws HttpClientException {
+        createContact(buildContact(personId, firstName, lastName, homePhoneNumber, phoneNumbers));
+    }
+
+    public void createContact(final StarfaceContact contact) throws HttpClientException {
+        execute(service.createContact(contact));
+        log.info("Created contact (name: {})", getName(contact));
+    }
+
+    /**
+     * Creates the contact and reads it back to check that Starface kept its "procurat" block. The new contact is
+     * taken from the Location header of the response or, if there is none, searched by the tag and person id.
+     **/
+    public boolean createAndVerifyContact(final StarfaceContact contact) throws HttpClientException {
+        final String personId = getAttributeValues(contact).get(PROCURAT_ID_KEY);
+        final String location = executeForResponse(service.createContact(contact)).headers().get("Location");
+        log.info("Created contact (name: {} | location: {})", getName(contact), location);
+
+        if (location != null) {
+            final String contactId = location.substring(location.lastIndexOf('/') + 1);
+            final StarfaceContact createdContact = execute(service.findContact(contactId));
+            return createdContact != null && personId.equals(getAttributeValues(createdContact).get(PROCURAT_ID_KEY));
+        }
+
+        final StarfaceContactSearchResult result = execute(service.searchContacts(tag.getId(), personId, SUMMARY_FIELDS));
+        if (result == null || result.getContacts() == null) {
+            return false;
         }
 
+        for (final StarfaceContactSearchResult.Contact summary : result.getContacts()) {
+            // The search terms also match phone numbers, so only an equal person id counts
+            if (personId.equals(getPersonId(summary))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void updateContact(final String contactId, final StarfaceContact contact) throws HttpClientException {
+        execute(service.updateContact(contactId, contact));
+        log.info("Updated contact (id: {} | name: {})", contactId, getName(contact));
+    }
+
+    public void deleteContact(final String contactId) throws HttpClientException {
+        execute(service.deleteContact(contactId));
+        log.info("Deleted contact (id: {})", contactId);
+    }
+
+    /**
+     * Builds the contact of a person. Besides the visible blocks it carries a "procurat" block with the person id
+     * and a fingerprint of the visible values, so contacts can be matched and compared without fetching them.
+     **/
+    public StarfaceContact buildContact(final int personId, final String firstName, final String lastName,
+                                        final String homePhoneNumber, final List<String> phoneNumbers) {
         final List<StarfaceContactTag> tags = new ArrayList<>();
         tags.add(tag);
 
@@ -147,28 +217,210 @@ public final class StarfaceClient extends AbstractHttpClient {
         contact.setTags(tags);
         contact.setBlocks(blocks);
 
-        execute(service.createContact(contact));
-        log.info("Created contact (name: {})", firstName + " " + lastName);
+        final StarfaceContactBlock procuratBlock = new StarfaceContactBlock();
+        procuratBlock.setName(PROCURAT_BLOCK);
+        final List<StarfaceContactAttribute> procuratAttributes = new ArrayList<>();
+        procuratAttributes.add(new StarfaceContactAttribute(null, PROCURAT_ID_ATTRIBUTE, String.valueOf(personId), null));
+        procuratAttributes.add(new StarfaceContactAttribute(null, PROCURAT_FINGERPRINT_ATTRIBUTE,
+                Fingerprint.of(getAttributeValues(contact).entrySet()), null));
+        procuratBlock.setAttributes(procuratAttributes);
+        blocks.add(procuratBlock);
+        return contact;
+    }
+
+    /**
+     * Finds all tagged contacts reduced to their Procurat person id and fingerprint, read from the search
+     * summaries. Only contacts whose summary lacks these values are fetched individually, a page at a time.
+     * Contacts without a "procurat" block (e.g. created by earlier versions) are included with a null person id.
+     **/
+    public List<StarfaceContactFingerprint> findAllContactFingerprints() throws HttpClientException {
+        final List<StarfaceContactFingerprint> fingerprints = new ArrayList<>();
+        int fetchedCount = 0;
+        final ContactPageIterator iterator = iterateContacts();
+        while (iterator.hasNext()) {
+            final Map<String, CompletableFuture<StarfaceContact>> futures = new LinkedHashMap<>();
+            for (final StarfaceContactSearchResult.Contact summary : iterator.next()) {
+                final Map<String, String> values = summary.getAdditionalValues();
+                if (values != null && values.get(PROCURAT_ID_KEY) != null) {
+                    fingerprints.add(createContactFingerprint(summary.getId(), values));
+                } else {
+                    futures.put(summary.getId(), executeAsync(service.findContact(summary.getId())));
+                }
+            }
+
+            for (final Map.Entry<String, CompletableFuture<StarfaceContact>> entry : futures.entrySet()) {
+                final StarfaceContact contact = await(entry.getValue());
+                if (contact != null) {
+                    fingerprints.add(createContactFingerprint(entry.getKey(), getAttributeValues(contact)));
+                }
+            }
+            fetchedCount += futures.size();
+        }
+
+        log.info("Found {} contacts ({} fetched individually)", fingerprints.size(), fetchedCount);
+        return fingerprints;
+    }
+
+    /**
+     * Reads the person id from the summary, fetching the contact if the summary lacks it
+     **/
+    private String getPersonId(final StarfaceContactSearchResult.Contact summary) throws HttpClientException {
+        if (summary.getAdditionalValues() != null && summary.getAdditionalValues().get(PROCURAT_ID_KEY) != null) {
+            return summary.getAdditionalValues().get(PROCURAT_ID_KEY);
+        }
+
+        final StarfaceContact contact = execute(service.findContact(summary.getId()));
+        return contact == null ? null : getAttributeValues(contact).get(PROCURAT_ID_KEY);
+    }
+
+    private static StarfaceContactFingerprint createContactFingerprint(final String contactId, final Map<String, String> values) {
+        return new StarfaceContactFingerprint(contactId, parsePersonId(contactId, values.get(PROCURAT_ID_KEY)),
+                values.get(PROCURAT_FINGERPRINT_KEY));
+    }
+
+    /**
+     * The block can be edited in Starface; contacts with a broken person id are treated like contacts without one
+     **/
+    private static Integer parsePersonId(final String contactId, final String personId) {
+        if (personId == null) {
+            return null;
+        }
+
+        try {
+            return Integer.valueOf(personId.trim());
+        } catch (final NumberFormatException e) {
+            log.warn("Ignoring invalid person id of contact (id: {} | person id: {})", contactId, personId);
+            return null;
+        }
+    }
+
+    public static String getFingerprint(final StarfaceContact contact) {
+        return getAttributeValues(contact).get(PROCURAT_FINGERPRINT_KEY);
     }
 
-    public void deleteAllContacts() throws HttpClientException, StarfaceLoginException {
-        if (isTokenInvalid()) {
-            login();
+    /**
+     * Flattens the non-empty attributes of a contact to "block.attribute" -> value, ignoring display metadata
+     **/
+    public static Map<String, String> getAttributeValues(final StarfaceContact contact) {
+        final Map<String, String> values = new HashMap<>();
+        if (contact.getBlocks() == null) {
+            return values;
         }
 
-        final StarfaceContactSearchResult metadataResult = execute(service.findContacts(tag.getId(), 0, 40));
-        int count = 0;
-        for (int page = metadataResult.getMetadata().getTotalPages(); page >= 0; page--) {
-            final StarfaceContactSearchResult result = execute(service.findContacts(tag.getId(), page, 40));
+        for (final StarfaceContactBlock block : contact.getBlocks()) {
+            if (block.getAttributes() == null) continue;
 
-            for (final StarfaceContactSearchResult.Contact contact : result.getContacts()) {
-                execute(service.deleteContact(contact.getId()));
-                count++;
-                log.info("Deleted contact (id: {})", contact.getId());
+            for (final StarfaceContactAttribute attribute : block.getAttributes()) {
+                if (attribute.getValue() == null || attribute.getValue().isEmpty()) continue;
+
+                values.put(block.getName() + "." + attribute.getName(), attribute.getValue());
+            }
+        }
+        return values;
+    }
+
+    public static String getName(final StarfaceContact contact) {
+        final Map<String, String> values = getAttributeValues(contact);
+        return values.get("contact.firstname") + " " + values.get("contact.familyname");
+    }
+
+    /**
+     * Collects the ids of all contacts carrying the default tag
+     **/
+    public List<String> findAllContactIds() throws HttpClientException {
+        final List<String> contactIds = new ArrayList<>();
+        final ContactPageIterator iterator = iterateContacts();
+        while (iterator.hasNext()) {
+            for (final StarfaceContactSearchResult.Contact contact : iterator.next()) {
+                contactIds.add(contact.getId());
             }
         }
+        return contactIds;
+    }
+
+    public ContactPageIterator iterateContacts() {
+        return new ContactPageIterator();
+    }
 
-        log.info("Deleted {} contacts", count);
+    public void deleteAllContacts() throws HttpClientException, StarfaceDeleteException {
+        // Collect first, deleting while paging would shift the pages
+        deleteContacts(findAllContactIds());
+    }
+
+    /**
+     * Deletes the given contacts on a bounded number of virtual threads. All contacts are attempted,
+     * failures are reported afterwards as a single {@link StarfaceDeleteException}.
+     **/
+    public void deleteContacts(final Collection<String> contactIds) throws HttpClientException, StarfaceDeleteException {
+        final Semaphore permits = new Semaphore(deleteParallelism);
+        final AtomicInteger deletedCount = new AtomicInteger();
+        final Queue<Exception> errors = new ConcurrentLinkedQueue<>();
+        final int progressInterval = Math.max(100, contactIds.size() / 10);
+        try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (final String contactId : contactIds) {
+                executor.execute(() -> {
+                    try {
+                        permits.acquire();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        errors.add(e);
+                        return;
+                    }
+
+                    try {
+                        execute(service.deleteContact(contactId));
+                        log.debug("Deleted contact (id: {})", contactId);
+
+                        final int count = deletedCount.incrementAndGet();
+                        if (count % progressInterval == 0) {
+                            log.info("Deleted {} of {} contacts", count, contactIds.size());
+                        }
+                    } catch (final Exception e) {
+                        log.warn("Unable to delete contact (id: {})", contactId, e);
+                        errors.add(e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        log.info("Deleted {} contacts ({} failed)", deletedCount.get(), errors.size());
+        if (!errors.isEmpty()) {
+            final StarfaceDeleteException exception = new StarfaceDeleteException(errors.size(), contactIds.size());
+            // Keep a few causes, the rest are logged above
+            errors.stream().limit(10).forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    /**
+     * Returns a valid token, logging in if there is none yet, it's about to expire or it has been rejected.
+     * Concurrent callers wait for a single login instead of each logging in on their own.
+     **/
+    private String getToken(final String rejectedToken) throws IOException {
+        final String token = authToken;
+        if (isTokenUsable(token, rejectedToken)) {
+            return token;
+        }
+
+        loginLock.lock();
+        try {
+            // Another caller may have logged in while waiting for the lock
+            if (!isTokenUsable(authToken, rejectedToken)) {
+                login();
+            }
+            return authToken;
+        } catch (final HttpClientException | StarfaceLoginException e) {
+            throw new IOException("login failed", e);
+        } finally {
+            loginLock.unlock();
+        }
+    }
+
+    private boolean isTokenUsable(final String token, final String rejectedToken) {
+        return token != null && !token.equals(rejectedToken)
+                && System.currentTimeMillis() - loginMillis < TOKEN_MAX_VALIDITY_MILLIS;
     }
 
     private void login() throws HttpClientException, StarfaceLoginException {
@@ -184,13 +436,61 @@ public final class StarfaceClient extends AbstractHttpClient {
         if (token == null || token.getToken() == null)
             throw new StarfaceLoginException("token invalid");
 
-        authToken = token.getToken();
         loginMillis = System.currentTimeMillis();
+        authToken = token.getToken();
 
         log.info("Login successful");
     }
 
-    private boolean isTokenInvalid() {
-        return System.currentTimeMillis() - loginMillis >= TOKEN_MAX_VALIDITY_MILLIS;
+    private static boolean isLoginRequest(final Request request) {
+        return request.url().encodedPath().endsWith("/login");
+    }
+
+    private final class TokenAuthenticator implements Interceptor, Authenticator {
+
+        @Override
+        public Response intercept(final Chain chain) throws IOException {
+            final Request request = chain.request();
+            if (isLoginRequest(request)) {
+                return chain.proceed(request);
+            }
+            return chain.proceed(request.newBuilder().header("authToken", getToken(null)).build());
+        }
+
+        @Override
+        public Request authenticate(final Route route, final Response response) throws IOException {
+            // Give up on failed logins and on requests already retried with a fresh token
+            final Request request = response.request();
+            if (isLoginRequest(request) || response.priorResponse() != null) {
+                return null;
+            }
+            return request.newBuilder().header("authToken", getToken(request.header("authToken"))).build();
+        }
+    }
+
+    /**
+     * Pages forward through the contacts carrying the default tag, one request per page
+     **/
+    public final class ContactPageIterator {
+
+        private int page;
+        private int totalPages = 1;
+
+        private ContactPageIterator() {
+        }
+
+        public boolean hasNext() {
+            return page < totalPages;
+        }
+
+        public List<StarfaceContactSearchResult.Contact> next() throws HttpClientException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final StarfaceContactSearchResult result = execute(service.findContacts(tag.getId(), SUMMARY_FIELDS, page++, pageSize));
+            totalPages = result.getMetadata().getTotalPages();
+            return result.getContacts() == null ? List.of() : result.getContacts();
+        }
     }
 }
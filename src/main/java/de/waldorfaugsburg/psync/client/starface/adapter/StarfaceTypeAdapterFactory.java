@@ -0,0 +1,269 @@
+package de.waldorfaugsburg.psync.client.starface.adapter;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import de.waldorfaugsburg.psync.client.ModelTypeAdapter;
+import de.waldorfaugsburg.psync.client.starface.model.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hand-written type adapters of the Starface models, replacing Gson's reflective (de)serialization
+ **/
+public final class StarfaceTypeAdapterFactory implements TypeAdapterFactory {
+
+    private static final MetadataAdapter METADATA_ADAPTER = new MetadataAdapter();
+    private static final SearchResultContactAdapter SEARCH_RESULT_CONTACT_ADAPTER = new SearchResultContactAdapter();
+    private static final ContactAttributeAdapter ATTRIBUTE_ADAPTER = new ContactAttributeAdapter();
+    private static final ContactBlockAdapter BLOCK_ADAPTER = new ContactBlockAdapter();
+    private static final ContactTagAdapter TAG_ADAPTER = new ContactTagAdapter();
+
+    private final Map<Class<?>, TypeAdapter<?>> adapters = new HashMap<>();
+
+    public StarfaceTypeAdapterFactory() {
+        adapters.put(StarfaceContact.class, new ContactAdapter());
+        adapters.put(StarfaceContactAttribute.class, ATTRIBUTE_ADAPTER);
+        adapters.put(StarfaceContactBlock.class, BLOCK_ADAPTER);
+        adapters.put(StarfaceContactSearchResult.class, new ContactSearchResultAdapter());
+        adapters.put(StarfaceContactSearchResult.Metadata.class, METADATA_ADAPTER);
+        adapters.put(StarfaceContactSearchResult.Contact.class, SEARCH_RESULT_CONTACT_ADAPTER);
+        adapters.put(StarfaceContactTag.class, TAG_ADAPTER);
+        adapters.put(StarfaceLogin.class, new LoginAdapter());
+        adapters.put(StarfaceToken.class, new TokenAdapter());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+        return (TypeAdapter<T>) adapters.get(type.getRawType());
+    }
+
+    private static final class ContactAdapter extends ModelTypeAdapter<StarfaceContact> {
+
+        @Override
+        protected StarfaceContact create() {
+            return new StarfaceContact();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceContact model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(readString(in));
+                case "tags" -> model.setTags(readList(in, TAG_ADAPTER));
+                case "blocks" -> model.setBlocks(readList(in, BLOCK_ADAPTER));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceContact model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("tags");
+            writeList(out, model.getTags(), TAG_ADAPTER);
+            out.name("blocks");
+            writeList(out, model.getBlocks(), BLOCK_ADAPTER);
+        }
+    }
+
+    private static final class ContactAttributeAdapter extends ModelTypeAdapter<StarfaceContactAttribute> {
+
+        @Override
+        protected StarfaceContactAttribute create() {
+            return new StarfaceContactAttribute();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceContactAttribute model) throws IOException {
+            switch (name) {
+                case "displayKey" -> model.setDisplayKey(readString(in));
+                case "name" -> model.setName(readString(in));
+                case "value" -> model.setValue(readString(in));
+                case "i18nDisplayName" -> model.setI18nDisplayName(readString(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceContactAttribute model) throws IOException {
+            out.name("displayKey").value(model.getDisplayKey());
+            out.name("name").value(model.getName());
+            out.name("value").value(model.getValue());
+            out.name("i18nDisplayName").value(model.getI18nDisplayName());
+        }
+    }
+
+    private static final class ContactBlockAdapter extends ModelTypeAdapter<StarfaceContactBlock> {
+
+        @Override
+        protected StarfaceContactBlock create() {
+            return new StarfaceContactBlock();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceContactBlock model) throws IOException {
+            switch (name) {
+                case "name" -> model.setName(readString(in));
+                case "resourceKey" -> model.setResourceKey(readString(in));
+                case "attributes" -> model.setAttributes(readList(in, ATTRIBUTE_ADAPTER));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceContactBlock model) throws IOException {
+            out.name("name").value(model.getName());
+            out.name("resourceKey").value(model.getResourceKey());
+            out.name("attributes");
+            writeList(out, model.getAttributes(), ATTRIBUTE_ADAPTER);
+        }
+    }
+
+    private static final class ContactSearchResultAdapter extends ModelTypeAdapter<StarfaceContactSearchResult> {
+
+        @Override
+        protected StarfaceContactSearchResult create() {
+            return new StarfaceContactSearchResult();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceContactSearchResult model) throws IOException {
+            switch (name) {
+                case "metadata" -> model.setMetadata(METADATA_ADAPTER.read(in));
+                case "contacts" -> model.setContacts(readList(in, SEARCH_RESULT_CONTACT_ADAPTER));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceContactSearchResult model) throws IOException {
+            out.name("metadata");
+            METADATA_ADAPTER.write(out, model.getMetadata());
+            out.name("contacts");
+            writeList(out, model.getContacts(), SEARCH_RESULT_CONTACT_ADAPTER);
+        }
+    }
+
+    private static final class MetadataAdapter extends ModelTypeAdapter<StarfaceContactSearchResult.Metadata> {
+
+        @Override
+        protected StarfaceContactSearchResult.Metadata create() {
+            return new StarfaceContactSearchResult.Metadata();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceContactSearchResult.Metadata model) throws IOException {
+            switch (name) {
+                case "page" -> model.setPage(in.nextInt());
+                case "totalPages" -> model.setTotalPages(in.nextInt());
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceContactSearchResult.Metadata model) throws IOException {
+            out.name("page").value(model.getPage());
+            out.name("totalPages").value(model.getTotalPages());
+        }
+    }
+
+    private static final class SearchResultContactAdapter extends ModelTypeAdapter<StarfaceContactSearchResult.Contact> {
+
+        @Override
+        protected StarfaceContactSearchResult.Contact create() {
+            return new StarfaceContactSearchResult.Contact();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceContactSearchResult.Contact model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(readString(in));
+                case "additionalValues" -> model.setAdditionalValues(readStringMap(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceContactSearchResult.Contact model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("additionalValues");
+            writeStringMap(out, model.getAdditionalValues());
+        }
+    }
+
+    private static final class ContactTagAdapter extends ModelTypeAdapter<StarfaceContactTag> {
+
+        @Override
+        protected StarfaceContactTag create() {
+            return new StarfaceContactTag();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceContactTag model) throws IOException {
+            switch (name) {
+                case "id" -> model.setId(readString(in));
+                case "name" -> model.setName(readString(in));
+                case "alias" -> model.setAlias(readString(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceContactTag model) throws IOException {
+            out.name("id").value(model.getId());
+            out.name("name").value(model.getName());
+            out.name("alias").value(model.getAlias());
+        }
+    }
+
+    private static final class LoginAdapter extends ModelTypeAdapter<StarfaceLogin> {
+
+        @Override
+        protected StarfaceLogin create() {
+            return new StarfaceLogin();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceLogin model) throws IOException {
+            switch (name) {
+                case "loginType" -> model.setLoginType(readString(in));
+                case "nonce" -> model.setNonce(readString(in));
+                case "secret" -> model.setSecret(readString(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceLogin model) throws IOException {
+            out.name("loginType").value(model.getLoginType());
+            out.name("nonce").value(model.getNonce());
+            out.name("secret").value(model.getSecret());
+        }
+    }
+
+    private static final class TokenAdapter extends ModelTypeAdapter<StarfaceToken> {
+
+        @Override
+        protected StarfaceToken create() {
+            return new StarfaceToken();
+        }
+
+        @Override
+        protected void readField(final JsonReader in, final String name, final StarfaceToken model) throws IOException {
+            switch (name) {
+                case "token" -> model.setToken(readString(in));
+                default -> in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(final JsonWriter out, final StarfaceToken model) throws IOException {
+            out.name("token").value(model.getToken());
+        }
+    }
+}
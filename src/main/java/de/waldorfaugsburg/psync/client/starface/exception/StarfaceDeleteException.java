@@ -0,0 +1,19 @@
+package de.waldorfaugsburg.psync.client.starface.exception;
+
+import lombok.Getter;
+
+/**
+ * Thrown after a bulk deletion in which some contacts couldn't be deleted; individual errors are suppressed
+ **/
+@Getter
+public class StarfaceDeleteException extends Exception {
+
+    private final int failedCount;
+    private final int totalCount;
+
+    public StarfaceDeleteException(final int failedCount, final int totalCount) {
+        super("failed to delete " + failedCount + " of " + totalCount + " contacts");
+        this.failedCount = failedCount;
+        this.totalCount = totalCount;
+    }
+}
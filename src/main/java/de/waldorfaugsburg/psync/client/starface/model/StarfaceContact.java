@@ -13,6 +13,7 @@ import java.util.List;
 @ToString
 public final class StarfaceContact {
 
+    private String id;
     private List<StarfaceContactTag> tags;
     private List<StarfaceContactBlock> blocks;
 
@@ -0,0 +1,16 @@
+package de.waldorfaugsburg.psync.client.starface.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+@AllArgsConstructor
+@Getter
+@ToString
+public final class StarfaceContactFingerprint {
+
+    private final String contactId;
+    private final Integer personId;
+    private final String fingerprint;
+
+}
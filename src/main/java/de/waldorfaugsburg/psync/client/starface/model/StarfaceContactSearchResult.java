@@ -3,6 +3,7 @@ package de.waldorfaugsburg.psync.client.starface.model;
 import lombok.*;
 
 import java.util.List;
+import java.util.Map;
 
 @NoArgsConstructor
 @AllArgsConstructor
@@ -16,6 +17,7 @@ public final class StarfaceContactSearchResult {
     @NoArgsConstructor
     @AllArgsConstructor
     @Getter
+    @Setter
     public static class Metadata {
         private int page;
         private int totalPages;
@@ -24,7 +26,10 @@ public final class StarfaceContactSearchResult {
     @NoArgsConstructor
     @AllArgsConstructor
     @Getter
+    @Setter
     public static class Contact {
         private String id;
+        // Values of the requested additional fields, "block.attribute" -> value
+        private Map<String, String> additionalValues;
     }
 }
@@ -15,11 +15,22 @@ public interface StarfaceService {
     Call<StarfaceToken> login(@Body StarfaceLogin login);
 
     @GET("contacts")
-    Call<StarfaceContactSearchResult> findContacts(@Query("tags") final String tagIds, @Query("page") final int page, @Query("pagesize") final int pageSize);
+    Call<StarfaceContactSearchResult> findContacts(@Query("tags") final String tagIds, @Query("additionalFields") final String additionalFields,
+                                                   @Query("page") final int page, @Query("pagesize") final int pageSize);
+
+    @GET("contacts")
+    Call<StarfaceContactSearchResult> searchContacts(@Query("tags") final String tagIds, @Query("searchTerms") final String searchTerms,
+                                                     @Query("additionalFields") final String additionalFields);
+
+    @GET("contacts/{contactId}")
+    Call<StarfaceContact> findContact(@Path("contactId") String contactId);
 
     @POST("contacts")
     Call<Void> createContact(@Body StarfaceContact contact);
 
+    @PUT("contacts/{contactId}")
+    Call<Void> updateContact(@Path("contactId") String contactId, @Body StarfaceContact contact);
+
     @DELETE("contacts/{contactId}")
     Call<Void> deleteContact(@Path("contactId") String contactId);
 
@@ -14,6 +14,8 @@ public final class ApplicationConfiguration {
     private ClientConfiguration clients;
     private List<AbstractSyncTaskConfiguration> tasks;
     private MailConfiguration mail;
+    private HttpConfiguration http = new HttpConfiguration();
+    private StateConfiguration state = new StateConfiguration();
 
     @NoArgsConstructor
     @Getter
@@ -25,6 +27,32 @@ public final class ApplicationConfiguration {
         private List<String> recipients;
     }
 
+    @NoArgsConstructor
+    @Getter
+    public static class StateConfiguration {
+        private String directory = "state";
+    }
+
+    @NoArgsConstructor
+    @Getter
+    public static class HttpConfiguration {
+        private int maxIdleConnections = 5;
+        private long keepAliveSeconds = 300;
+        private int maxRequests = 64;
+        private int maxRequestsPerHost = 16;
+        private RetryConfiguration retry = new RetryConfiguration();
+    }
+
+    @NoArgsConstructor
+    @Getter
+    public static class RetryConfiguration {
+        private int maxAttempts = 4;
+        private long initialBackoffMillis = 500;
+        private long maxBackoffMillis = 30000;
+        // Maximum number of retries per client instance (i.e. task run)
+        private int retryBudget = 50;
+    }
+
     @NoArgsConstructor
     @Getter
     public static class ClientConfiguration {
@@ -41,6 +69,24 @@ public final class ApplicationConfiguration {
         private String apiKey;
         private int rootGroupId;
         private Map<String, Integer> namedGroups;
+        private CacheConfiguration cache = new CacheConfiguration();
+        private HttpCacheConfiguration httpCache;
+    }
+
+    @NoArgsConstructor
+    @Getter
+    public static class CacheConfiguration {
+        private long maximumSize = 10000;
+        private long expireAfterWriteSeconds = 3600;
+    }
+
+    @NoArgsConstructor
+    @Getter
+    public static class HttpCacheConfiguration {
+        private String directory;
+        private long maximumSizeBytes = 100L * 1024 * 1024;
+        // Used for responses without caching headers
+        private long freshnessSeconds = 3600;
     }
 
     @NoArgsConstructor
@@ -50,6 +96,10 @@ public final class ApplicationConfiguration {
         private String userId;
         private String password;
         private String tag;
+        // Contacts requested per search page
+        private int pageSize = 100;
+        // Maximum number of concurrent deletions
+        private int deleteParallelism = 8;
     }
 
     @NoArgsConstructor
@@ -60,6 +110,12 @@ public final class ApplicationConfiguration {
         private String clientSecret;
         private String contactFolderId;
         private String impersonatedUserId;
+        // Contacts created or updated per EWS request
+        private int batchSize = 50;
+        // Retries of a call Exchange rejects as busy
+        private int maxBusyRetries = 5;
+        // Upper bound for the spacing between calls while Exchange is busy
+        private long maxThrottleDelayMillis = 10000;
     }
 
     @NoArgsConstructor
@@ -0,0 +1,36 @@
+package de.waldorfaugsburg.psync.state;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.Collection;
+import java.util.stream.Collectors;
+
+public final class Fingerprint {
+
+    private static final char SEPARATOR = '\u001f';
+    private static final char NULL = '\u0000';
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Creates a stable hash of the given values. Collections are treated as sets, i.e. their order doesn't matter.
+     **/
+    public static String of(final Object... values) {
+        final StringBuilder builder = new StringBuilder();
+        for (final Object value : values) {
+            if (value == null) {
+                builder.append(NULL);
+            } else if (value instanceof final Collection<?> collection) {
+                builder.append(collection.stream()
+                        .map(String::valueOf)
+                        .sorted()
+                        .collect(Collectors.joining(String.valueOf(SEPARATOR), "[", "]")));
+            } else {
+                builder.append(value);
+            }
+            builder.append(SEPARATOR);
+        }
+        return DigestUtils.sha256Hex(builder.toString());
+    }
+}
@@ -0,0 +1,270 @@
+package de.waldorfaugsburg.psync.state;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only key/value log. Every write appends a record, the latest record of a key wins and removals are
+ * written as tombstones. Values are read through a memory mapping of the log, only key and location are held
+ * on the heap. {@link #sync()} forces written records to disk; a torn record at the end of the log (e.g. after a
+ * crash) is detected by its checksum and cut off on startup. The log is compacted once most of it is garbage.
+ * A single mapping covers the whole log, which limits it to 2 GiB and values to 16 MiB.
+ *
+ * <pre>
+ * record := keyLength (int) | valueLength (int, -1 for tombstones) | key (UTF-8) | value (UTF-8) | crc32 (int)
+ * </pre>
+ **/
+@Slf4j
+public final class SyncJournal implements AutoCloseable {
+
+    private static final int HEADER_BYTES = 8;
+    private static final int CHECKSUM_BYTES = 4;
+    private static final int TOMBSTONE = -1;
+    // Value lengths share the index entry with the offset
+    private static final int MAX_VALUE_LENGTH = 0xFFFFFF;
+    // Largest log a single mapping can cover
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+    // Don't bother compacting small logs
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private final Path file;
+    // Key -> offset (upper 40 bits) and length (lower 24 bits) of the value
+    private final Map<String, Long> index = new HashMap<>();
+
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private long size;
+    private long liveBytes;
+
+    public SyncJournal(final Path file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    public synchronized String get(final String key) throws IOException {
+        final Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        final long offset = location >>> 24;
+        final int length = (int) (location & 0xFFFFFF);
+        if (offset + length > mapping.capacity()) {
+            // Value has been appended after the last mapping
+            remap();
+        }
+
+        final byte[] value = new byte[length];
+        mapping.get((int) offset, value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    public synchronized List<String> getKeys(final String prefix) {
+        final List<String> keys = new ArrayList<>();
+        for (final String key : index.keySet()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    public synchronized void put(final String key, final String value) throws IOException {
+        append(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized void remove(final String key) throws IOException {
+        if (index.containsKey(key)) {
+            append(key, null);
+        }
+    }
+
+    /**
+     * Forces all appended records to disk and compacts the log if most of it is garbage
+     **/
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+
+        if (size > MIN_COMPACTION_BYTES && liveBytes * 2 < size) {
+            compact();
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+        mapping = null;
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size();
+        if (size > MAX_SIZE) {
+            throw new IOException("journal " + file + " exceeds " + MAX_SIZE + " bytes");
+        }
+        remap();
+
+        index.clear();
+        liveBytes = 0;
+        long position = 0;
+        while (position < size) {
+            final long recordEnd = readRecord(position);
+            if (recordEnd < 0) {
+                // Torn or corrupt record; everything after it is unusable
+                log.warn("Truncating journal {} at {} of {} bytes", file, position, size);
+                channel.truncate(position);
+                channel.force(false);
+                size = position;
+                remap();
+                break;
+            }
+            position = recordEnd;
+        }
+
+        log.info("Opened journal {} with {} keys ({} bytes)", file, index.size(), size);
+    }
+
+    private long readRecord(final long position) {
+        if (position + HEADER_BYTES + CHECKSUM_BYTES > size) {
+            return -1;
+        }
+
+        final int keyLength = mapping.getInt((int) position);
+        final int valueLength = mapping.getInt((int) position + 4);
+        // Garbage lengths must neither overflow nor point past the end of the log
+        if (keyLength < 0 || valueLength < TOMBSTONE || valueLength > MAX_VALUE_LENGTH
+                || position + HEADER_BYTES + keyLength + Math.max(0, valueLength) + CHECKSUM_BYTES > size) {
+            return -1;
+        }
+
+        final byte[] record = new byte[HEADER_BYTES + keyLength + Math.max(0, valueLength)];
+        mapping.get((int) position, record);
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != mapping.getInt((int) position + record.length)) {
+            return -1;
+        }
+
+        final String key = new String(record, HEADER_BYTES, keyLength, StandardCharsets.UTF_8);
+        index(key, position + HEADER_BYTES + keyLength, valueLength);
+        return position + record.length + CHECKSUM_BYTES;
+    }
+
+    private void append(final String key, final byte[] value) throws IOException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int valueLength = value == null ? TOMBSTONE : value.length;
+        if (valueLength > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("value too large");
+        }
+
+        final int recordLength = HEADER_BYTES + keyBytes.length + Math.max(0, valueLength) + CHECKSUM_BYTES;
+        if (size + recordLength > MAX_SIZE) {
+            // Make room by dropping garbage first
+            channel.force(false);
+            compact();
+            if (size + recordLength > MAX_SIZE) {
+                throw new IOException("journal " + file + " is full (" + size + " bytes)");
+            }
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+        buffer.putInt(keyBytes.length).putInt(valueLength).put(keyBytes);
+        if (value != null) {
+            buffer.put(value);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        final long position = size;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        size += buffer.limit();
+        index(key, position + HEADER_BYTES + keyBytes.length, valueLength);
+    }
+
+    private void index(final String key, final long valueOffset, final int valueLength) {
+        final Long previous = valueLength == TOMBSTONE ? index.remove(key) : index.put(key, (valueOffset << 24) | valueLength);
+        if (previous != null) {
+            liveBytes -= recordBytes(key, (int) (previous & 0xFFFFFF));
+        }
+        if (valueLength != TOMBSTONE) {
+            liveBytes += recordBytes(key, valueLength);
+        }
+    }
+
+    private void compact() throws IOException {
+        final Path compactedFile = file.resolveSibling(file.getFileName() + ".compact");
+        final long previousSize = size;
+
+        // Write all live records into a new log and swap it in atomically
+        try (final FileChannel compactedChannel = FileChannel.open(compactedFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (final String key : index.keySet()) {
+                final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                final byte[] valueBytes = get(key).getBytes(StandardCharsets.UTF_8);
+
+                final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + valueBytes.length + CHECKSUM_BYTES);
+                buffer.putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+                final CRC32 crc = new CRC32();
+                crc.update(buffer.array(), 0, buffer.position());
+                buffer.putInt((int) crc.getValue());
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    compactedChannel.write(buffer);
+                }
+            }
+            compactedChannel.force(true);
+        }
+
+        channel.close();
+        mapping = null;
+        Files.move(compactedFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        open();
+        log.info("Compacted journal {} from {} to {} bytes", file, previousSize, size);
+    }
+
+    /**
+     * Persists the rename of the compacted log. Not every platform can open directories (e.g. Windows),
+     * there the rename is as durable as the file system makes it.
+     **/
+    private void syncDirectory() {
+        final Path directory = file.toAbsolutePath().getParent();
+        try (final FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (final IOException e) {
+            log.debug("Unable to sync directory {}", directory, e);
+        }
+    }
+
+    private void remap() throws IOException {
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    private static long recordBytes(final String key, final int valueLength) {
+        return HEADER_BYTES + key.getBytes(StandardCharsets.UTF_8).length + valueLength + CHECKSUM_BYTES;
+    }
+}
@@ -0,0 +1,67 @@
+package de.waldorfaugsburg.psync.state;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Persistent state of the sync tasks on top of a {@link SyncJournal}. Besides plain key/value access (e.g. for
+ * per-target id mappings) it stores per target and person the fingerprint of the record last written to that
+ * target, so tasks can skip persons whose data didn't change since the last run.
+ **/
+public final class SyncStateStore implements AutoCloseable {
+
+    private static final String FINGERPRINT_PREFIX = "fingerprint/";
+
+    private final SyncJournal journal;
+
+    public SyncStateStore(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.journal = new SyncJournal(directory.resolve("sync-state.journal"));
+    }
+
+    public String get(final String key) throws IOException {
+        return journal.get(key);
+    }
+
+    public List<String> getKeys(final String prefix) {
+        return journal.getKeys(prefix);
+    }
+
+    public void put(final String key, final String value) throws IOException {
+        journal.put(key, value);
+    }
+
+    public void remove(final String key) throws IOException {
+        journal.remove(key);
+    }
+
+    public String getFingerprint(final String target, final int personId) throws IOException {
+        return journal.get(FINGERPRINT_PREFIX + target + "/" + personId);
+    }
+
+    public boolean isUnchanged(final String target, final int personId, final String fingerprint) throws IOException {
+        return fingerprint.equals(getFingerprint(target, personId));
+    }
+
+    public void putFingerprint(final String target, final int personId, final String fingerprint) throws IOException {
+        journal.put(FINGERPRINT_PREFIX + target + "/" + personId, fingerprint);
+    }
+
+    public void removeFingerprint(final String target, final int personId) throws IOException {
+        journal.remove(FINGERPRINT_PREFIX + target + "/" + personId);
+    }
+
+    /**
+     * Makes all changes durable
+     **/
+    public void save() throws IOException {
+        journal.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -69,6 +69,7 @@ public abstract class AbstractSyncTask<T extends AbstractSyncTaskConfiguration>
         } finally {
             running = false;
             log.info("Finished task {} within {}ms (next run: {})", getClass().getSimpleName(), System.currentTimeMillis() - startMillis, getNextRun());
+            application.getHttpClientRegistry().logStatistics();
 
             if (!deviationMap.isEmpty()) {
                 log.warn("Recorded {} deviations for task {}", deviationMap.size(), getClass().getSimpleName());
@@ -1,17 +1,21 @@
 package de.waldorfaugsburg.psync.task.activedirectory;
 
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import com.google.gson.JsonElement;
 import de.waldorfaugsburg.psync.ProcuratSyncApplication;
 import de.waldorfaugsburg.psync.client.HttpClientException;
 import de.waldorfaugsburg.psync.client.activedirectory.ADClient;
 import de.waldorfaugsburg.psync.client.activedirectory.model.ADUser;
+import de.waldorfaugsburg.psync.client.procurat.MembershipIndex;
 import de.waldorfaugsburg.psync.client.procurat.ProcuratClient;
 import de.waldorfaugsburg.psync.client.procurat.model.ProcuratCommunication;
 import de.waldorfaugsburg.psync.client.procurat.model.ProcuratContactInformation;
 import de.waldorfaugsburg.psync.client.procurat.model.ProcuratGroupMembership;
 import de.waldorfaugsburg.psync.client.procurat.model.ProcuratPerson;
+import de.waldorfaugsburg.psync.config.ApplicationConfiguration.ActiveDirectoryConfiguration;
+import de.waldorfaugsburg.psync.state.Fingerprint;
+import de.waldorfaugsburg.psync.state.SyncStateStore;
 import de.waldorfaugsburg.psync.task.AbstractSyncTask;
 import lombok.extern.slf4j.Slf4j;
 
@@ -21,6 +25,8 @@ import java.util.*;
 @Slf4j
 public final class ADSyncTask extends AbstractSyncTask<ADSyncTaskConfiguration> {
 
+    private static final String STATE_TARGET = "activedirectory";
+
     public ADSyncTask(final ProcuratSyncApplication application, final ADSyncTaskConfiguration configuration) {
         super(application, configuration);
     }
@@ -30,7 +36,7 @@ public final class ADSyncTask extends AbstractSyncTask<ADSyncTaskConfiguration>
         final ProcuratClient procuratClient = ProcuratClient.createInstance(getApplication());
         final ADClient adClient = ADClient.createInstance(getApplication());
 
-        final List<ProcuratGroupMembership> rootGroupMemberships = procuratClient.getRootGroupMemberships();
+        final MembershipIndex rootMembershipIndex = procuratClient.getRootMembershipIndex();
         final Multimap<ADSyncTaskConfiguration.UserMapper, ADSyncTaskConfiguration.Selector> selectorGroupMap = ArrayListMultimap.create();
         for (final ADSyncTaskConfiguration.UserMapper mapper : getConfiguration().getUserMappers()) {
             selectorGroupMap.putAll(mapper, accumulateSelectors(procuratClient, mapper).stream().distinct().toList());
@@ -39,31 +45,48 @@ public final class ADSyncTask extends AbstractSyncTask<ADSyncTaskConfiguration>
         final long personCount = selectorGroupMap.values().stream().distinct().count();
         log.info("Aggregated a total of {} persons in {} groups for synchronisation", personCount, selectorGroupMap.keySet().size());
 
+        // Target groups of a person across all mappers
+        final Multimap<Integer, String> personTargetGroupMap = HashMultimap.create();
+        selectorGroupMap.forEach((mapper, selector) -> personTargetGroupMap.putAll(selector.getId(), mapper.getTargetGroups()));
+
+        final SyncStateStore stateStore = getApplication().getStateStore();
+        final Map<Integer, String> changedFingerprints = new HashMap<>();
+        final Set<Integer> unchangedPersonIds = new HashSet<>();
         final Set<Integer> processedPersonIds = new HashSet<>();
         for (final ADSyncTaskConfiguration.UserMapper mapper : selectorGroupMap.keySet()) {
             final Collection<ADSyncTaskConfiguration.Selector> selectors = selectorGroupMap.get(mapper);
             log.info("Starting with mapper {} ({} members)", mapper.getName(), selectors.size());
 
             for (final ADSyncTaskConfiguration.Selector selector : selectors) {
+                // Always resolve the AD user, so accounts deleted or moved by hand are repaired
                 ADUser adUser = adClient.findUserByEmployeeId(selector.getId());
-                if (!processedPersonIds.contains(selector.getId())) {
+                if (processedPersonIds.add(selector.getId())) {
                     final ProcuratPerson person = procuratClient.getPersonById(selector.getId());
 
-                    try {
-                        createOrUpdateADUser(adClient, procuratClient, rootGroupMemberships, mapper, adUser, person);
-                        adUser = adClient.findUserByEmployeeId(selector.getId());
-                    } catch (final Exception e) {
-                        recordDeviation("Unable to update/create AD user for person '%s' (Id: %s): %s",
-                                person.getId(), person.getFullName(),
-                                e.getMessage());
+                    // Skip writing persons whose AD record would be the same as after the last run,
+                    // unless their user is missing or was disabled in the meantime
+                    final String fingerprint = createFingerprint(procuratClient, rootMembershipIndex, mapper,
+                            personTargetGroupMap.get(person.getId()), person);
+                    if (adUser != null && !adUser.isDisabled() && getConfiguration().isSkipUnchanged() && stateStore.isUnchanged(STATE_TARGET, person.getId(), fingerprint)) {
+                        log.debug("Skipping unchanged person {}", person.getId());
+                        unchangedPersonIds.add(person.getId());
+                    } else {
+                        changedFingerprints.put(person.getId(), fingerprint);
+                        try {
+                            createOrUpdateADUser(adClient, procuratClient, rootMembershipIndex, mapper, adUser, person);
+                            adUser = adClient.findUserByEmployeeId(selector.getId());
+                        } catch (final Exception e) {
+                            // Retry on next run
+                            changedFingerprints.remove(person.getId());
+                            recordDeviation("Unable to update/create AD user for person '%s' (Id: %s): %s",
+                                    person.getId(), person.getFullName(),
+                                    e.getMessage());
+                        }
                     }
+                }
 
-                    // Add to processed persons
-                    processedPersonIds.add(selector.getId());
-
-                    if (adUser == null) {
-                        continue;
-                    }
+                if (adUser == null) {
+                    continue;
                 }
 
                 // Add to mapper group
@@ -75,10 +98,16 @@ public final class ADSyncTask extends AbstractSyncTask<ADSyncTaskConfiguration>
             }
         }
 
+        log.info("Skipped {} unchanged persons", unchangedPersonIds.size());
+        for (final Map.Entry<Integer, String> entry : changedFingerprints.entrySet()) {
+            stateStore.putFingerprint(STATE_TARGET, entry.getKey(), entry.getValue());
+        }
+        stateStore.save();
+
         for (final ADUser adUser : adClient.findAllUsers()) {
             if (adUser.isDisabled() || adUser.getEmployeeId() == null) continue;
 
-            if (procuratClient.isPersonInactive(rootGroupMemberships, adUser.getEmployeeId())) {
+            if (rootMembershipIndex.isInactive(adUser.getEmployeeId())) {
                 adClient.disableUser(adUser);
                 continue;
             }
@@ -92,43 +121,57 @@ public final class ADSyncTask extends AbstractSyncTask<ADSyncTaskConfiguration>
         }
 
         adClient.close();
+        procuratClient.close();
     }
 
-    private void createOrUpdateADUser(final ADClient adClient, final ProcuratClient procuratClient,
-                                      final List<ProcuratGroupMembership> rootMemberships, final ADSyncTaskConfiguration.UserMapper mapper,
-                                      final ADUser adUser, final ProcuratPerson person) throws NamingException, HttpClientException {
-        ProcuratGroupMembership rootMembership = null;
-        for (final ProcuratGroupMembership membership : rootMemberships) {
-            if (membership.getPersonId() == person.getId()) {
-                rootMembership = membership;
-                break;
+    private String createFingerprint(final ProcuratClient procuratClient, final MembershipIndex rootMembershipIndex,
+                                     final ADSyncTaskConfiguration.UserMapper mapper, final Collection<String> targetGroups,
+                                     final ProcuratPerson person) throws HttpClientException {
+        // Fingerprint everything createOrUpdateADUser derives the AD record from
+        final ActiveDirectoryConfiguration configuration = getApplication().getConfiguration().getClients().getActiveDirectory();
+        final ProcuratGroupMembership rootMembership = rootMembershipIndex.getMembership(person.getId());
+
+        final List<String> mails = new ArrayList<>();
+        for (final ProcuratContactInformation information : procuratClient.getContactInformationByPersonId(person.getId())) {
+            if (information.getMedium().equals("email") && !information.isSecret()) {
+                mails.add(information.getOrder() + ":" + information.getType() + ":" + information.getContent());
             }
         }
 
+        return Fingerprint.of(person.getFirstName(), person.getLastName(), rootMembership != null,
+                rootMembership == null ? null : rootMembership.getUdf(configuration.getUsernameUDF()),
+                rootMembership == null ? null : rootMembership.getUdf(configuration.getNoSyncUDF()),
+                rootMembership == null ? null : rootMembership.getUdf(configuration.getNoUpnUDF()),
+                mails, mapper.getTargetDN(), mapper.getTitle(), mapper.getOffice(), mapper.getDescription(), targetGroups);
+    }
+
+    private void createOrUpdateADUser(final ADClient adClient, final ProcuratClient procuratClient,
+                                      final MembershipIndex rootMembershipIndex, final ADSyncTaskConfiguration.UserMapper mapper,
+                                      final ADUser adUser, final ProcuratPerson person) throws NamingException, HttpClientException {
+        final ProcuratGroupMembership rootMembership = rootMembershipIndex.getMembership(person.getId());
+
         if (rootMembership == null) {
             throw new IllegalStateException("inactive person " + person.getId());
         }
 
         // Check if sync disabled
         final String noSyncUDF = getApplication().getConfiguration().getClients().getActiveDirectory().getNoSyncUDF();
-        final JsonElement noSyncElement = rootMembership.getJsonData().get(noSyncUDF);
-        if (noSyncElement != null && noSyncElement.getAsBoolean()) {
+        final String noSync = rootMembership.getUdf(noSyncUDF);
+        if (noSync != null && Boolean.parseBoolean(noSync)) {
             return;
         }
 
         // Get username from UDF
         final String usernameUDF = getApplication().getConfiguration().getClients().getActiveDirectory().getUsernameUDF();
-        final JsonElement usernameElement = rootMembership.getJsonData().get(usernameUDF);
-        if (usernameElement == null) {
+        final String username = rootMembership.getUdf(usernameUDF);
+        if (username == null) {
             throw new IllegalStateException("no username in UDF for person " + person.getId());
         }
 
-        final String username = usernameElement.getAsString();
-
         // Check if mail should be UPN
         final String noUpnUDF = getApplication().getConfiguration().getClients().getActiveDirectory().getNoUpnUDF();
-        final JsonElement noUpnElement = rootMembership.getJsonData().get(noUpnUDF);
-        boolean mailAsUpn = noUpnElement == null || !noUpnElement.getAsBoolean();
+        final String noUpn = rootMembership.getUdf(noUpnUDF);
+        boolean mailAsUpn = noUpn == null || !Boolean.parseBoolean(noUpn);
 
         // Find work mail from ContactInformation
         final List<ProcuratContactInformation> personContactInformation = procuratClient.getContactInformationByPersonId(person.getId());
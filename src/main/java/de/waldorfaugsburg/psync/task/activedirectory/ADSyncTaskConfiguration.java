@@ -12,6 +12,8 @@ import java.util.List;
 public final class ADSyncTaskConfiguration extends AbstractSyncTaskConfiguration {
 
     private List<UserMapper> userMappers;
+    // Skip persons whose projected AD record didn't change since the last run
+    private boolean skipUnchanged = true;
 
     @NoArgsConstructor
     @Getter
@@ -3,22 +3,31 @@ package de.waldorfaugsburg.psync.task.ews;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
 import de.waldorfaugsburg.psync.ProcuratSyncApplication;
+import de.waldorfaugsburg.psync.client.AbstractHttpClient;
 import de.waldorfaugsburg.psync.client.HttpClientException;
 import de.waldorfaugsburg.psync.client.ews.EWSClient;
+import de.waldorfaugsburg.psync.client.ews.model.EWSContactData;
+import de.waldorfaugsburg.psync.client.ews.model.EWSFolderChanges;
+import de.waldorfaugsburg.psync.client.ews.model.EWSItemChange;
+import de.waldorfaugsburg.psync.client.procurat.MembershipIndex;
 import de.waldorfaugsburg.psync.client.procurat.ProcuratClient;
 import de.waldorfaugsburg.psync.client.procurat.model.*;
+import de.waldorfaugsburg.psync.state.SyncStateStore;
 import de.waldorfaugsburg.psync.task.AbstractSyncTask;
 import lombok.extern.slf4j.Slf4j;
-import microsoft.exchange.webservices.data.core.enumeration.property.EmailAddressKey;
-import microsoft.exchange.webservices.data.core.service.item.Contact;
-import microsoft.exchange.webservices.data.misc.OutParam;
-import microsoft.exchange.webservices.data.property.complex.EmailAddress;
+import microsoft.exchange.webservices.data.core.enumeration.sync.ChangeType;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration> {
 
+    private static final String STATE_TARGET = "ews";
+    private static final String SYNC_STATE_KEY = "ews/syncState";
+    private static final String ITEM_PREFIX = "ews/item/";
+
     public EWSSyncTask(final ProcuratSyncApplication application, final EWSSyncTaskConfiguration configuration) {
         super(application, configuration);
     }
@@ -28,7 +37,7 @@ public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration
         final ProcuratClient procuratClient = ProcuratClient.createInstance(getApplication());
         final EWSClient ewsClient = EWSClient.createInstance(getApplication());
 
-        final List<ProcuratGroupMembership> rootGroupMemberships = procuratClient.getRootGroupMemberships();
+        final MembershipIndex rootMembershipIndex = procuratClient.getRootMembershipIndex();
         final Multimap<EWSSyncTaskConfiguration.ContactGroup, EWSSyncTaskConfiguration.Selector> selectorGroupMap = ArrayListMultimap.create();
         for (final EWSSyncTaskConfiguration.ContactGroup group : getConfiguration().getGroups()) {
             selectorGroupMap.putAll(group, accumulateSelectors(procuratClient, group).stream().distinct().toList());
@@ -37,11 +46,28 @@ public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration
         final long personCount = selectorGroupMap.values().stream().distinct().count();
         log.info("Aggregated a total of {} persons in {} groups for synchronisation", personCount, selectorGroupMap.keySet().size());
 
-        if (!ewsClient.deleteAllContacts()) {
-            throw new IllegalStateException("Could not delete contacts");
+        final SyncStateStore stateStore = getApplication().getStateStore();
+        final boolean incremental = getConfiguration().isIncremental();
+        final Map<Integer, String> itemIds = loadItemIds(stateStore);
+        if (incremental) {
+            // Pick up changes made by others since the last run
+            final String syncState = stateStore.get(SYNC_STATE_KEY);
+            applyFolderChanges(ewsClient, stateStore, itemIds, ewsClient.syncContacts(syncState, List.of()), syncState == null);
+        } else {
+            if (!ewsClient.deleteAllContacts()) {
+                throw new IllegalStateException("Could not delete contacts");
+            }
+
+            // Nothing of the previous state is left
+            clearState(stateStore, itemIds);
         }
 
-        final Map<Integer, Contact> contactMap = new HashMap<>();
+        // Existing contact groups are updated in place
+        final Map<String, String> groupItemIds = incremental ? ewsClient.findContactGroups() : new HashMap<>();
+
+        final Map<Integer, EWSContactData> contactMap = new HashMap<>();
+        final EWSClient.ContactBatch contactBatch = ewsClient.createContactBatch();
+        int unchangedCount = 0;
         for (final EWSSyncTaskConfiguration.ContactGroup group : selectorGroupMap.keySet()) {
             final Collection<EWSSyncTaskConfiguration.Selector> selectors = selectorGroupMap.get(group);
             log.info("Starting with group {} ({} members)", group.getName(), selectors.size());
@@ -49,27 +75,35 @@ public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration
             final Map<String, String> contactEmailMap = new HashMap<>();
             for (final EWSSyncTaskConfiguration.Selector selector : selectors) {
                 final ProcuratPerson person = procuratClient.getPersonById(selector.getId());
-                Contact contact = contactMap.get(person.getId());
+                EWSContactData contact = contactMap.get(person.getId());
                 if (contact == null) {
-                    contact = createContact(procuratClient, ewsClient, rootGroupMemberships, person);
+                    contact = createContactData(procuratClient, rootMembershipIndex, person);
                     contactMap.put(person.getId(), contact);
+
+                    // Only write contacts that are new or whose data changed
+                    final String fingerprint = contact.getFingerprint();
+                    if (stateStore.isUnchanged(STATE_TARGET, person.getId(), fingerprint) && itemIds.containsKey(person.getId())) {
+                        unchangedCount++;
+                    } else if (itemIds.containsKey(person.getId())) {
+                        contactBatch.update(itemIds.get(person.getId()), contact);
+                    } else {
+                        contactBatch.create(contact);
+                    }
                 }
 
                 final String emailTypeString = selector.getEmailType();
                 if (emailTypeString.equals("private")) {
-                    final OutParam<EmailAddress> outParam = new OutParam<>();
-                    if (contact.getEmailAddresses().tryGetValue(EmailAddressKey.EmailAddress1, outParam)) {
-                        contactEmailMap.put(contact.getDisplayName(), outParam.getParam().getAddress());
-                    } else if (contact.getEmailAddresses().tryGetValue(EmailAddressKey.EmailAddress2, outParam)) {
-                        contactEmailMap.put(contact.getDisplayName(), outParam.getParam().getAddress());
+                    if (contact.getPrivateEmail() != null) {
+                        contactEmailMap.put(contact.getDisplayName(), contact.getPrivateEmail());
+                    } else if (contact.getWorkEmail() != null) {
+                        contactEmailMap.put(contact.getDisplayName(), contact.getWorkEmail());
                         recordDeviation("Fallback to work email for '%s' (Id: %s) for membership in '%s'", contact.getDisplayName(), person.getId(), group.getName());
                     } else {
                         recordDeviation("Could not find private email for '%s' (Id: %s) for membership in '%s'", contact.getDisplayName(), person.getId(), group.getName());
                     }
                 } else if (emailTypeString.equals("work")) {
-                    final OutParam<EmailAddress> outParam = new OutParam<>();
-                    if (contact.getEmailAddresses().tryGetValue(EmailAddressKey.EmailAddress2, outParam)) {
-                        contactEmailMap.put(contact.getDisplayName(), outParam.getParam().getAddress());
+                    if (contact.getWorkEmail() != null) {
+                        contactEmailMap.put(contact.getDisplayName(), contact.getWorkEmail());
                     } else {
                         recordDeviation("Could not find work email for '%s' (Id: %s) for membership in '%s'", person.getLastName() + " " + person.getFirstName(), person.getId(), group.getName());
                     }
@@ -86,21 +120,135 @@ public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration
                 recordDeviation("%s contacts found for group %s", contactEmailMap.size(), group.getName());
             }
 
-            Thread.sleep(2000);
-            ewsClient.createContactGroup(group.getName(), contactEmailMap);
+            ewsClient.reconcileContactGroup(group.getName(), groupItemIds.remove(group.getName()), contactEmailMap);
+        }
+
+        // Write remaining contacts and remember the written ones
+        contactBatch.flush();
+        final Set<String> writtenItemIds = new HashSet<>();
+        for (final Map.Entry<Integer, String> entry : contactBatch.getWrittenItemIds().entrySet()) {
+            itemIds.put(entry.getKey(), entry.getValue());
+            writtenItemIds.add(entry.getValue());
+            stateStore.put(ITEM_PREFIX + entry.getKey(), entry.getValue());
+            stateStore.putFingerprint(STATE_TARGET, entry.getKey(), contactMap.get(entry.getKey()).getFingerprint());
+        }
+        for (final Map.Entry<Integer, String> entry : contactBatch.getErrors().entrySet()) {
+            recordDeviation("Unable to write contact for '%s' (Id: %s): %s", contactMap.get(entry.getKey()).getDisplayName(),
+                    entry.getKey(), entry.getValue());
+        }
+
+        if (incremental) {
+            // Delete contacts of persons that are no longer synchronised
+            final Map<Integer, String> obsoleteItemIds = new HashMap<>(itemIds);
+            obsoleteItemIds.keySet().removeAll(contactMap.keySet());
+            final Map<String, String> deleteErrors = ewsClient.deleteItems(obsoleteItemIds.values());
+            for (final Map.Entry<Integer, String> entry : obsoleteItemIds.entrySet()) {
+                final String error = deleteErrors.get(entry.getValue());
+                if (error == null) {
+                    removeItem(stateStore, itemIds, entry.getKey());
+                } else {
+                    // Keep the mapping to retry on the next run
+                    recordDeviation("Unable to delete contact of person %s: %s", entry.getKey(), error);
+                }
+            }
+
+            // Delete contact groups that are no longer configured
+            ewsClient.deleteItems(groupItemIds.values()).forEach((itemId, error) ->
+                    recordDeviation("Unable to delete contact group %s: %s", itemId, error));
+
+            // Advance the sync state past our own changes
+            applyFolderChanges(ewsClient, stateStore, itemIds, ewsClient.syncContacts(stateStore.get(SYNC_STATE_KEY), writtenItemIds), false);
+            log.info("Wrote {} and deleted {} contacts ({} unchanged, throttled for {}ms)", writtenItemIds.size(),
+                    obsoleteItemIds.size() - deleteErrors.size(), unchangedCount, ewsClient.getThrottledMillis());
         }
+        stateStore.save();
 
         ewsClient.close();
+        procuratClient.close();
     }
 
-    private Contact createContact(final ProcuratClient procuratClient, final EWSClient ewsClient, final List<ProcuratGroupMembership> rootMemberships, final ProcuratPerson person) throws HttpClientException {
+    private Map<Integer, String> loadItemIds(final SyncStateStore stateStore) throws IOException {
+        final Map<Integer, String> itemIds = new HashMap<>();
+        for (final String key : stateStore.getKeys(ITEM_PREFIX)) {
+            itemIds.put(Integer.parseInt(key.substring(ITEM_PREFIX.length())), stateStore.get(key));
+        }
+        return itemIds;
+    }
+
+    /**
+     * Reconciles the stored person id -> item id mapping with the changes reported by EWS. A full sync
+     * (without previous sync state) reports every item as created.
+     **/
+    private void applyFolderChanges(final EWSClient ewsClient, final SyncStateStore stateStore, final Map<Integer, String> itemIds,
+                                    final EWSFolderChanges folderChanges, final boolean fullSync) throws IOException {
+        final Map<String, Integer> personIds = new HashMap<>();
+        itemIds.forEach((personId, itemId) -> personIds.put(itemId, personId));
+
+        final List<String> duplicateItemIds = new ArrayList<>();
+        for (final EWSItemChange change : folderChanges.getChanges()) {
+            if (change.getChangeType() == ChangeType.Delete) {
+                final Integer personId = personIds.remove(change.getItemId());
+                if (personId != null) {
+                    removeItem(stateStore, itemIds, personId);
+                }
+                continue;
+            }
+
+            // Ignore contact groups and contacts not created by us
+            if (change.getPersonId() == null || change.getChangeType() == ChangeType.ReadFlagChange) continue;
+
+            final String itemId = itemIds.get(change.getPersonId());
+            if (itemId == null) {
+                // Adopt contacts we don't know yet (e.g. on the first incremental run)
+                itemIds.put(change.getPersonId(), change.getItemId());
+                personIds.put(change.getItemId(), change.getPersonId());
+                stateStore.put(ITEM_PREFIX + change.getPersonId(), change.getItemId());
+                stateStore.removeFingerprint(STATE_TARGET, change.getPersonId());
+            } else if (itemId.equals(change.getItemId())) {
+                if (fullSync) continue;
+
+                // Modified by someone else, overwrite it on the next write
+                stateStore.removeFingerprint(STATE_TARGET, change.getPersonId());
+            } else {
+                duplicateItemIds.add(change.getItemId());
+            }
+        }
+
+        if (!duplicateItemIds.isEmpty()) {
+            log.info("Deleting {} duplicate contacts", duplicateItemIds.size());
+            // Failed duplicates won't be reported again once the sync state advanced past them
+            ewsClient.deleteItems(duplicateItemIds).forEach((itemId, error) ->
+                    recordDeviation("Unable to delete duplicate contact %s: %s", itemId, error));
+        }
+        stateStore.put(SYNC_STATE_KEY, folderChanges.getSyncState());
+    }
+
+    private void removeItem(final SyncStateStore stateStore, final Map<Integer, String> itemIds, final int personId) throws IOException {
+        itemIds.remove(personId);
+        stateStore.remove(ITEM_PREFIX + personId);
+        stateStore.removeFingerprint(STATE_TARGET, personId);
+    }
+
+    private void clearState(final SyncStateStore stateStore, final Map<Integer, String> itemIds) throws IOException {
+        for (final int personId : List.copyOf(itemIds.keySet())) {
+            removeItem(stateStore, itemIds, personId);
+        }
+        stateStore.remove(SYNC_STATE_KEY);
+    }
+
+    private EWSContactData createContactData(final ProcuratClient procuratClient, final MembershipIndex rootMembershipIndex, final ProcuratPerson person) throws HttpClientException {
         String workEmail = null;
         String privateEmail = null;
         String homePhone = null;
         String mobilePhone = null;
 
+        // Issue independent lookups at once
+        final CompletableFuture<List<ProcuratContactInformation>> addressContactInfoFuture = procuratClient.getContactInformationByAddressIdAsync(person.getAddressId());
+        final CompletableFuture<List<ProcuratContactInformation>> personContactInfoFuture = procuratClient.getContactInformationByPersonIdAsync(person.getId());
+        final CompletableFuture<ProcuratAddress> addressFuture = procuratClient.getAddressByIdAsync(person.getAddressId());
+
         // Address contact information
-        final List<ProcuratContactInformation> addressContactInfo = procuratClient.getContactInformationByAddressId(person.getAddressId());
+        final List<ProcuratContactInformation> addressContactInfo = AbstractHttpClient.await(addressContactInfoFuture);
         for (final ProcuratContactInformation addressInfo : addressContactInfo) {
             if (!addressInfo.getMedium().equals("telephone")) continue;
 
@@ -109,7 +257,7 @@ public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration
         }
 
         // Personal contact information
-        final List<ProcuratContactInformation> personContactInfo = procuratClient.getContactInformationByPersonId(person.getId());
+        final List<ProcuratContactInformation> personContactInfo = AbstractHttpClient.await(personContactInfoFuture);
         for (final ProcuratContactInformation personInfo : personContactInfo) {
             if (workEmail == null && personInfo.getOrder() == 1 && personInfo.getMedium().equals("email") && personInfo.getType().equals("work")) {
                 workEmail = personInfo.getContent();
@@ -167,7 +315,7 @@ public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration
                     continue;
 
                 // Ignore inactive persons
-                if (procuratClient.isPersonInactive(rootMemberships, familyPerson.getId()))
+                if (rootMembershipIndex.isInactive(familyPerson.getId()))
                     continue;
 
                 // Ignore persons that aren't school children
@@ -196,8 +344,8 @@ public final class EWSSyncTask extends AbstractSyncTask<EWSSyncTaskConfiguration
             noteBuilder.append("</ul>");
         }
 
-        final ProcuratAddress address = procuratClient.getAddressById(person.getAddressId());
-        return ewsClient.createContact(person.getId(), person.getFirstName(), person.getLastName(), privateEmail, workEmail, homePhone, mobilePhone, address.getCity(), address.getZip(), address.getStreet(), noteBuilder.toString());
+        final ProcuratAddress address = AbstractHttpClient.await(addressFuture);
+        return new EWSContactData(person.getId(), person.getFirstName(), person.getLastName(), privateEmail, workEmail, homePhone, mobilePhone, address.getCity(), address.getZip(), address.getStreet(), noteBuilder.toString());
     }
 
     private List<EWSSyncTaskConfiguration.Selector> accumulateSelectors(final ProcuratClient client, final EWSSyncTaskConfiguration.ContactGroup group) throws HttpClientException {
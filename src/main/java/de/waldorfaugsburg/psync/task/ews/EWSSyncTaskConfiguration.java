@@ -14,6 +14,9 @@ public final class EWSSyncTaskConfiguration extends AbstractSyncTaskConfiguratio
 
     private List<ContactGroup> groups;
 
+    // Only write contacts whose data changed instead of emptying the contact folder on every run
+    private boolean incremental = true;
+
     @NoArgsConstructor
     @Getter
     public static class ContactGroup {
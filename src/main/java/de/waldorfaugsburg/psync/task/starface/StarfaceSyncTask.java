@@ -1,20 +1,38 @@
 package de.waldorfaugsburg.psync.task.starface;
 
 import de.waldorfaugsburg.psync.ProcuratSyncApplication;
+import de.waldorfaugsburg.psync.client.procurat.MembershipIndex;
 import de.waldorfaugsburg.psync.client.procurat.ProcuratClient;
 import de.waldorfaugsburg.psync.client.procurat.model.ProcuratContactInformation;
-import de.waldorfaugsburg.psync.client.procurat.model.ProcuratGroupMembership;
 import de.waldorfaugsburg.psync.client.procurat.model.ProcuratPerson;
 import de.waldorfaugsburg.psync.client.starface.StarfaceClient;
+import de.waldorfaugsburg.psync.client.starface.exception.StarfaceDeleteException;
+import de.waldorfaugsburg.psync.client.starface.model.StarfaceContact;
+import de.waldorfaugsburg.psync.client.starface.model.StarfaceContactFingerprint;
+import de.waldorfaugsburg.psync.state.SyncStateStore;
 import de.waldorfaugsburg.psync.task.AbstractSyncTask;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
+/**
+ * Runs as a pipeline: Procurat lookups resolve contacts which are handed to the Starface writers through a
+ * bounded queue, so reading and writing overlap and a slow writer holds back the reader instead of piling up.
+ **/
 @Slf4j
 public final class StarfaceSyncTask extends AbstractSyncTask<StarfaceSyncTaskConfiguration> {
 
+    // Tells a writer that no more contacts will follow
+    private static final ContactWrite POISON_PILL = new ContactWrite(null, null, null);
+    // Set while Starface is known to drop the "procurat" block, which makes reconciling impossible
+    private static final String BLOCK_UNSUPPORTED_KEY = "starface/blockUnsupportedSince";
+    private static final long BLOCK_RECHECK_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
     public StarfaceSyncTask(final ProcuratSyncApplication application, final StarfaceSyncTaskConfiguration configuration) {
         super(application, configuration);
     }
@@ -24,58 +42,269 @@ public final class StarfaceSyncTask extends AbstractSyncTask<StarfaceSyncTaskCon
         final ProcuratClient procuratClient = ProcuratClient.createInstance(getApplication());
         final StarfaceClient starfaceClient = StarfaceClient.createInstance(getApplication());
 
-        // Delete all contacts to start fresh
-        starfaceClient.deleteAllContacts();
+        // Either diff against the existing contacts or delete all of them to start fresh
+        final SyncStateStore stateStore = getApplication().getStateStore();
+        final boolean reconcile = getConfiguration().isReconcile() && !isBlockUnsupported(stateStore);
+        final Map<Integer, StarfaceContactFingerprint> existingContacts = new HashMap<>();
+        final List<String> obsoleteContactIds = new ArrayList<>();
+        if (reconcile) {
+            for (final StarfaceContactFingerprint fingerprint : starfaceClient.findAllContactFingerprints()) {
+                // Contacts of unknown persons and duplicates are replaced
+                if (fingerprint.getPersonId() == null || existingContacts.putIfAbsent(fingerprint.getPersonId(), fingerprint) != null) {
+                    obsoleteContactIds.add(fingerprint.getContactId());
+                }
+            }
+            log.info("Found {} existing contacts ({} obsolete)", existingContacts.size() + obsoleteContactIds.size(), obsoleteContactIds.size());
+        } else {
+            starfaceClient.deleteAllContacts();
+        }
+
+        // Without any contact carrying a person id (e.g. the first run after migrating), the first created
+        // contact is read back before relying on the "procurat" block
+        final boolean migrating = reconcile && existingContacts.isEmpty();
+        boolean verifyBlock = migrating;
+
+        final MembershipIndex rootMembershipIndex = procuratClient.getRootMembershipIndex();
 
-        final List<ProcuratPerson> persons = procuratClient.getAllPersons();
-        final List<ProcuratGroupMembership> rootMemberships = procuratClient.getRootGroupMemberships();
+        final BlockingQueue<ContactWrite> queue = new ArrayBlockingQueue<>(getConfiguration().getQueueCapacity());
+        final PipelineStatistics statistics = new PipelineStatistics();
+        final Queue<ContactWrite> failedWrites = new ConcurrentLinkedQueue<>();
 
-        int count = 0;
-        for (final ProcuratPerson person : persons) {
-            // Check if person is inactive
-            if (procuratClient.isPersonInactive(rootMemberships, person.getId())) {
-                log.info("Skipping inactive person {}", person);
-                continue;
+        // Fetch contact information for a bounded window of persons ahead, but consume it in order
+        final int parallelism = getConfiguration().getParallelism();
+        final Deque<Future<ContactLookup>> lookups = new ArrayDeque<>(parallelism);
+        int unchangedCount = 0;
+        int personCount = 0;
+        final long startMillis = System.currentTimeMillis();
+        try (final ExecutorService writers = Executors.newVirtualThreadPerTaskExecutor()) {
+            // Writers drain the queue while it's being filled
+            for (int i = 0; i < getConfiguration().getWriterConcurrency(); i++) {
+                writers.execute(() -> writeContacts(starfaceClient, queue, statistics, failedWrites));
             }
 
-            final List<ProcuratContactInformation> addressContactInfo = procuratClient.getContactInformationByAddressId(person.getAddressId());
-            final List<ProcuratContactInformation> personContactInfo = procuratClient.getContactInformationByPersonId(person.getId());
+            try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+                 final Stream<ProcuratPerson> persons = procuratClient.streamAllPersons()) {
+                // Lookups start while the remaining persons are still being downloaded; only the persons
+                // of the window are held in memory
+                final Iterator<ProcuratPerson> iterator = persons.iterator();
+                while (true) {
+                    while (lookups.size() < parallelism && iterator.hasNext()) {
+                        final ProcuratPerson person = iterator.next();
+                        personCount++;
+
+                        // Check if person is inactive
+                        if (rootMembershipIndex.isInactive(person.getId())) {
+                            log.info("Skipping inactive person {}", person);
+                            continue;
+                        }
+
+                        lookups.add(executor.submit(() -> new ContactLookup(person,
+                                procuratClient.getContactInformationByAddressId(person.getAddressId()),
+                                procuratClient.getContactInformationByPersonId(person.getId()))));
+                    }
+                    if (lookups.isEmpty()) {
+                        break;
+                    }
+
+                    final ContactLookup lookup = await(lookups.poll());
+                    final ProcuratPerson person = lookup.person();
+
+                    String homePhone = null;
+                    for (final ProcuratContactInformation addressInfo : lookup.addressContactInfo()) {
+                        // Only accept landline numbers
+                        if (!addressInfo.getMedium().equals("telephone")) continue;
+
+                        homePhone = normalizePhoneNumber(addressInfo.getContent());
+                        break;
+                    }
+
+                    final List<String> phoneNumbers = new ArrayList<>();
+                    for (final ProcuratContactInformation personInfo : lookup.personContactInfo()) {
+                        if (!personInfo.getMedium().equals("telephone") && !personInfo.getMedium().equals("mobile")) continue;
+                        // Skip phone numbers flagged as secret
+                        if (personInfo.isSecret()) continue;
 
-            String homePhone = null;
-            for (final ProcuratContactInformation addressInfo : addressContactInfo) {
-                // Only accept landline numbers
-                if (!addressInfo.getMedium().equals("telephone")) continue;
+                        phoneNumbers.add(normalizePhoneNumber(personInfo.getContent()));
+                    }
 
-                homePhone = normalizePhoneNumber(addressInfo.getContent());
-                break;
+                    // Skip person without any personal phone numbers (e.g. students)
+                    if (phoneNumbers.isEmpty()) {
+                        log.info("Skipping person {} because there are no phone numbers", person);
+                        continue;
+                    }
+
+                    // Remove possible duplicate home phone number
+                    phoneNumbers.remove(homePhone);
+
+                    final StarfaceContact contact = starfaceClient.buildContact(person.getId(), person.getFirstName(),
+                            person.getLastName(), homePhone, phoneNumbers);
+                    final StarfaceContactFingerprint existingContact = existingContacts.remove(person.getId());
+                    if (existingContact == null && verifyBlock) {
+                        verifyBlock = false;
+                        // Failing to create the contact aborts the run before anything is deleted
+                        final boolean blockVerified = starfaceClient.createAndVerifyContact(contact);
+                        statistics.createdCount.incrementAndGet();
+                        if (blockVerified) {
+                            stateStore.remove(BLOCK_UNSUPPORTED_KEY);
+                        } else {
+                            stateStore.put(BLOCK_UNSUPPORTED_KEY, String.valueOf(System.currentTimeMillis()));
+                            recordDeviation("Starface doesn't keep the procurat block of contacts, recreating all contacts on the next runs");
+                        }
+                    } else if (existingContact == null) {
+                        enqueue(queue, new ContactWrite(person, null, contact), statistics);
+                    } else if (Objects.equals(existingContact.getFingerprint(), StarfaceClient.getFingerprint(contact))) {
+                        unchangedCount++;
+                    } else {
+                        enqueue(queue, new ContactWrite(person, existingContact.getContactId(), contact), statistics);
+                    }
+                }
+            } finally {
+                // Stop the writers once they've drained the queue, also if reading failed
+                for (int i = 0; i < getConfiguration().getWriterConcurrency(); i++) {
+                    queue.put(POISON_PILL);
+                }
+                statistics.readMillis = System.currentTimeMillis() - startMillis;
             }
+        }
+
+        log.info("Pipeline finished within {}ms (reading took {}ms): queue depth max {} / avg {} of {}, reader blocked {} times, writers starved {} times",
+                System.currentTimeMillis() - startMillis, statistics.readMillis, statistics.maxDepth.get(),
+                statistics.enqueuedCount.get() == 0 ? 0 : statistics.depthSum.get() / statistics.enqueuedCount.get(),
+                getConfiguration().getQueueCapacity(), statistics.readerBlockedCount.get(), statistics.writerStarvedCount.get());
+
+        for (final ContactWrite write : failedWrites) {
+            recordDeviation("Unable to write contact for person '%s' (Id: %s)", write.person().getFullName(), write.person().getId());
+        }
 
-            final List<String> phoneNumbers = new ArrayList<>();
-            for (final ProcuratContactInformation personInfo : personContactInfo) {
-                if (!personInfo.getMedium().equals("telephone") && !personInfo.getMedium().equals("mobile")) continue;
-                // Skip phone numbers flagged as secret
-                if (personInfo.isSecret()) continue;
+        // Remaining contacts don't belong to any active person anymore
+        for (final StarfaceContactFingerprint fingerprint : existingContacts.values()) {
+            obsoleteContactIds.add(fingerprint.getContactId());
+        }
 
-                phoneNumbers.add(normalizePhoneNumber(personInfo.getContent()));
+        // Only delete once all replacements exist, never empty the address book after an empty read
+        // and never delete more than expected unless replacing old contacts
+        int deletedCount = 0;
+        if (!failedWrites.isEmpty()) {
+            recordDeviation("Skipped deleting %s obsolete contacts because %s contacts couldn't be written",
+                    obsoleteContactIds.size(), failedWrites.size());
+        } else if (personCount == 0 && !obsoleteContactIds.isEmpty()) {
+            recordDeviation("Skipped deleting %s obsolete contacts because Procurat returned no persons", obsoleteContactIds.size());
+        } else if (obsoleteContactIds.size() > getConfiguration().getMaxDeletions() && !migrating) {
+            recordDeviation("Skipped deleting %s obsolete contacts, more than the limit of %s",
+                    obsoleteContactIds.size(), getConfiguration().getMaxDeletions());
+        } else {
+            try {
+                starfaceClient.deleteContacts(obsoleteContactIds);
+                deletedCount = obsoleteContactIds.size();
+            } catch (final StarfaceDeleteException e) {
+                deletedCount = e.getTotalCount() - e.getFailedCount();
+                recordDeviation("Unable to delete obsolete contacts: %s", e.getMessage());
             }
+        }
+        stateStore.save();
+
+        log.info("Created {}, updated {} and deleted {} contacts from {} persons ({} unchanged)", statistics.createdCount.get(),
+                statistics.updatedCount.get(), deletedCount, personCount, unchangedCount);
+
+        starfaceClient.close();
+        procuratClient.close();
+    }
+
+    private boolean isBlockUnsupported(final SyncStateStore stateStore) throws IOException {
+        final String since = stateStore.get(BLOCK_UNSUPPORTED_KEY);
+        if (since == null) {
+            return false;
+        }
+
+        // Check again every now and then, e.g. after a Starface update
+        if (System.currentTimeMillis() - Long.parseLong(since) > BLOCK_RECHECK_MILLIS) {
+            return false;
+        }
+        log.info("Not reconciling contacts, Starface doesn't keep the procurat block");
+        return true;
+    }
 
-            // Skip person without any personal phone numbers (e.g. students)
-            if (phoneNumbers.isEmpty()) {
-                log.info("Skipping person {} because there are no phone numbers", person);
-                continue;
+    private void enqueue(final BlockingQueue<ContactWrite> queue, final ContactWrite write, final PipelineStatistics statistics) throws InterruptedException {
+        if (!queue.offer(write)) {
+            // Writers are behind, wait for them
+            statistics.readerBlockedCount.incrementAndGet();
+            queue.put(write);
+        }
+
+        final int depth = queue.size();
+        statistics.enqueuedCount.incrementAndGet();
+        statistics.depthSum.addAndGet(depth);
+        statistics.maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    private void writeContacts(final StarfaceClient starfaceClient, final BlockingQueue<ContactWrite> queue,
+                               final PipelineStatistics statistics, final Queue<ContactWrite> failedWrites) {
+        while (true) {
+            ContactWrite write = queue.poll();
+            try {
+                if (write == null) {
+                    // Reader is behind, wait for it
+                    statistics.writerStarvedCount.incrementAndGet();
+                    write = queue.take();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
 
-            // Remove possible duplicate home phone number
-            phoneNumbers.remove(homePhone);
+            if (write == POISON_PILL) {
+                return;
+            }
 
-            starfaceClient.createContact(person.getFirstName(), person.getLastName(), homePhone, phoneNumbers);
-            count++;
+            try {
+                if (write.contactId() == null) {
+                    starfaceClient.createContact(write.contact());
+                    statistics.createdCount.incrementAndGet();
+                } else {
+                    starfaceClient.updateContact(write.contactId(), write.contact());
+                    statistics.updatedCount.incrementAndGet();
+                }
+            } catch (final Exception e) {
+                log.error("Unable to write contact for person {}", write.person().getId(), e);
+                failedWrites.add(write);
+            }
         }
+    }
 
-        log.info("Created {} contacts from {} persons", count, persons.size());
+    private <T> T await(final Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            // Rethrow the original lookup error
+            if (e.getCause() instanceof final Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
     }
 
     private String normalizePhoneNumber(final String phoneNumber) {
         return phoneNumber.replaceAll("[^\\d.]+", "");
     }
+
+    private record ContactLookup(ProcuratPerson person, List<ProcuratContactInformation> addressContactInfo,
+                                 List<ProcuratContactInformation> personContactInfo) {
+    }
+
+    /**
+     * A contact to create (without contact id) or to update
+     **/
+    private record ContactWrite(ProcuratPerson person, String contactId, StarfaceContact contact) {
+    }
+
+    private static final class PipelineStatistics {
+        private final AtomicInteger createdCount = new AtomicInteger();
+        private final AtomicInteger updatedCount = new AtomicInteger();
+        private final AtomicLong enqueuedCount = new AtomicLong();
+        private final AtomicLong depthSum = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong readerBlockedCount = new AtomicLong();
+        private final AtomicLong writerStarvedCount = new AtomicLong();
+        private volatile long readMillis;
+    }
 }
@@ -1,9 +1,28 @@
 package de.waldorfaugsburg.psync.task.starface;
 
 import de.waldorfaugsburg.psync.task.AbstractSyncTaskConfiguration;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
 
+@Getter
+@NoArgsConstructor
 public final class StarfaceSyncTaskConfiguration extends AbstractSyncTaskConfiguration {
 
+    // Maximum number of concurrent Procurat lookups
+    private int parallelism = 8;
+
+    // Only create, update and delete the contacts that differ instead of recreating all of them
+    private boolean reconcile = true;
+
+    // Obsolete contacts are only deleted if there are at most this many (except when replacing old contacts)
+    private int maxDeletions = 500;
+
+    // Contacts waiting to be written before the Procurat lookups are held back
+    private int queueCapacity = 64;
+
+    // Maximum number of concurrent Starface writes
+    private int writerConcurrency = 4;
+
     @Override
     public Class<?> getTaskClass() {
         return StarfaceSyncTask.class;
@@ -0,0 +1,129 @@
+package de.waldorfaugsburg.psync.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import de.waldorfaugsburg.psync.client.procurat.adapter.ProcuratTypeAdapterFactory;
+import de.waldorfaugsburg.psync.client.procurat.model.ProcuratPerson;
+import de.waldorfaugsburg.psync.client.starface.adapter.StarfaceTypeAdapterFactory;
+import de.waldorfaugsburg.psync.client.starface.model.StarfaceContactSearchResult;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Compares Gson's reflective deserialization against the hand-written type adapters on generated payloads:
+ * a Procurat person list and a Starface contact search result. Run through the "benchmark" profile or
+ * directly with the test classpath; arguments are the record count, warmup rounds and measured rounds.
+ **/
+public final class AdapterBenchmark {
+
+    private static final Type PERSON_LIST_TYPE = new TypeToken<List<ProcuratPerson>>() {
+    }.getType();
+
+    public static void main(final String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int warmupRounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        final Gson reflectiveGson = new Gson();
+        final Gson procuratGson = reflectiveGson.newBuilder().registerTypeAdapterFactory(new ProcuratTypeAdapterFactory()).create();
+        final Gson starfaceGson = reflectiveGson.newBuilder().registerTypeAdapterFactory(new StarfaceTypeAdapterFactory()).create();
+
+        final String personJson = reflectiveGson.toJson(createPersons(count), PERSON_LIST_TYPE);
+        run("Procurat persons", personJson, PERSON_LIST_TYPE, reflectiveGson, procuratGson,
+                (List<ProcuratPerson> persons) -> persons.size() == count, warmupRounds, rounds);
+
+        final String contactJson = reflectiveGson.toJson(createContactSearchResult(count));
+        run("Starface contact search", contactJson, StarfaceContactSearchResult.class, reflectiveGson, starfaceGson,
+                (StarfaceContactSearchResult result) -> result.getContacts().size() == count, warmupRounds, rounds);
+    }
+
+    private static <T> void run(final String name, final String json, final Type type, final Gson reflectiveGson,
+                                final Gson adapterGson, final Predicate<T> check, final int warmupRounds, final int rounds) {
+        System.out.printf("%s: %d KiB%n", name, json.length() / 1024);
+
+        // Alternate both variants so neither profits from a warmer JIT
+        for (int i = 0; i < warmupRounds; i++) {
+            parse(reflectiveGson, json, type, check);
+            parse(adapterGson, json, type, check);
+        }
+
+        final long[] reflectiveNanos = new long[rounds];
+        final long[] adapterNanos = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            reflectiveNanos[i] = parse(reflectiveGson, json, type, check);
+            adapterNanos[i] = parse(adapterGson, json, type, check);
+        }
+
+        report("reflective", reflectiveNanos);
+        report("hand-written", adapterNanos);
+        System.out.printf("  speedup (median) %.2fx%n", (double) median(reflectiveNanos) / median(adapterNanos));
+    }
+
+    private static <T> long parse(final Gson gson, final String json, final Type type, final Predicate<T> check) {
+        final long start = System.nanoTime();
+        final T result = gson.fromJson(json, type);
+        final long duration = System.nanoTime() - start;
+
+        // Also keeps the JIT from dropping the result
+        if (!check.test(result)) {
+            throw new IllegalStateException("Unexpected parse result");
+        }
+        return duration;
+    }
+
+    private static List<ProcuratPerson> createPersons(final int count) {
+        final List<ProcuratPerson> persons = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            persons.add(new ProcuratPerson(i, "First" + i, "Last" + i, i % 2 == 0 ? "female" : "male", 1000 + i / 3,
+                    2000 + i / 4, i % 4 == 0 ? "child" : "parent", "2010-01-" + (10 + i % 18), "Augsburg", 49, 1, i % 5,
+                    "First" + i + " Middle" + i, "person" + i + "@example.org", i % 7 == 0 ? "Birth" + i : null, null,
+                    null, null, "Liebe", "Lieber", i % 3 == 0 ? "Teacher" : null, "Generated person " + i, 49,
+                    "single", null));
+        }
+        return persons;
+    }
+
+    /**
+     * Search summaries carry the visible contact fields besides the id; both variants have to skip them
+     **/
+    private static JsonObject createContactSearchResult(final int count) {
+        final JsonObject metadata = new JsonObject();
+        metadata.addProperty("page", 0);
+        metadata.addProperty("totalPages", 1);
+        metadata.addProperty("totalItems", count);
+
+        final JsonArray contacts = new JsonArray(count);
+        for (int i = 1; i <= count; i++) {
+            final JsonObject contact = new JsonObject();
+            contact.addProperty("id", "contact-" + i);
+            contact.addProperty("firstname", "First" + i);
+            contact.addProperty("familyname", "Last" + i);
+            contact.addProperty("phone", "+49821" + (1000000 + i));
+            contact.addProperty("mobile", "+49170" + (1000000 + i));
+            contact.addProperty("homephone", "+49821" + (2000000 + i));
+            contact.addProperty("primaryExternalNumber", "+49821" + (1000000 + i));
+            contacts.add(contact);
+        }
+
+        final JsonObject result = new JsonObject();
+        result.add("metadata", metadata);
+        result.add("contacts", contacts);
+        return result;
+    }
+
+    private static void report(final String name, final long[] nanos) {
+        System.out.printf("  %-12s median %6.2f ms, min %6.2f ms%n", name, median(nanos) / 1e6, Arrays.stream(nanos).min().orElse(0) / 1e6);
+    }
+
+    private static long median(final long[] nanos) {
+        final long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}